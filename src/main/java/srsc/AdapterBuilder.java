@@ -0,0 +1,126 @@
+package srsc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * Builds the ADAPTER of an entity from the list of its fields, see
+ * JsonCodec. Apart from JsonCodec on purpose: GSON is built from every
+ * ADAPTER, so building an ADAPTER must not need JsonCodec initialized.
+ */
+public class AdapterBuilder<T> {
+
+    private interface Writer<T> {
+        void write(JsonWriter out, T value) throws IOException;
+    }
+
+    private interface Reader<T> {
+        void read(JsonReader in, T value) throws IOException;
+    }
+
+    private final Supplier<T> factory;
+    private final List<String> names = new ArrayList<>();
+    private final List<Writer<T>> writers = new ArrayList<>();
+    private final Map<String, Reader<T>> readers = new HashMap<>();
+
+    private AdapterBuilder(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    // the ADAPTER of an entity made with factory, its fields added in declaration order
+    public static <T> AdapterBuilder<T> of(Supplier<T> factory) {
+        return new AdapterBuilder<>(factory);
+    }
+
+    public AdapterBuilder<T> string(String name, Function<T, String> get, BiConsumer<T, String> set) {
+        return field(name, (out, v) -> out.value(get.apply(v)),
+                (in, v) -> set.accept(v, JsonCodec.readString(in)));
+    }
+
+    // int, and byte with a cast in set
+    public AdapterBuilder<T> integer(String name, ToIntFunction<T> get, ObjIntConsumer<T> set) {
+        return field(name, (out, v) -> out.value(get.applyAsInt(v)),
+                (in, v) -> set.accept(v, JsonCodec.readInt(in, get.applyAsInt(v))));
+    }
+
+    public AdapterBuilder<T> longValue(String name, ToLongFunction<T> get, ObjLongConsumer<T> set) {
+        return field(name, (out, v) -> out.value(get.applyAsLong(v)),
+                (in, v) -> set.accept(v, JsonCodec.readLong(in, get.applyAsLong(v))));
+    }
+
+    public AdapterBuilder<T> bool(String name, Predicate<T> get, BiConsumer<T, Boolean> set) {
+        return field(name, (out, v) -> out.value(get.test(v)),
+                (in, v) -> set.accept(v, JsonCodec.readBoolean(in, get.test(v))));
+    }
+
+    public AdapterBuilder<T> bytes(String name, Function<T, byte[]> get, BiConsumer<T, byte[]> set) {
+        return field(name, (out, v) -> JsonCodec.writeBytes(out, get.apply(v)),
+                (in, v) -> set.accept(v, JsonCodec.readBytes(in)));
+    }
+
+    public AdapterBuilder<T> strings(String name, Function<T, String[]> get, BiConsumer<T, String[]> set) {
+        return field(name, (out, v) -> JsonCodec.writeStrings(out, get.apply(v)),
+                (in, v) -> set.accept(v, JsonCodec.readStrings(in)));
+    }
+
+    // another entity, through its ADAPTER
+    public <V> AdapterBuilder<T> object(String name, TypeAdapter<V> adapter, Function<T, V> get,
+            BiConsumer<T, V> set) {
+        return field(name, (out, v) -> adapter.write(out, get.apply(v)),
+                (in, v) -> set.accept(v, adapter.read(in)));
+    }
+
+    private AdapterBuilder<T> field(String name, Writer<T> writer, Reader<T> reader) {
+        names.add(name);
+        writers.add(writer);
+        readers.put(name, reader);
+        return this;
+    }
+
+    public TypeAdapter<T> build() {
+        List<String> names = List.copyOf(this.names);
+        List<Writer<T>> writers = List.copyOf(this.writers);
+        Map<String, Reader<T>> readers = Map.copyOf(this.readers);
+        return new TypeAdapter<T>() {
+            @Override
+            public void write(JsonWriter out, T value) throws IOException {
+                out.beginObject();
+                for (int i = 0; i < names.size(); i++) {
+                    out.name(names.get(i)); // dropped by the writer if the value is null
+                    writers.get(i).write(out, value);
+                }
+                out.endObject();
+            }
+
+            @Override
+            public T read(JsonReader in) throws IOException {
+                T value = factory.get();
+                in.beginObject();
+                while (in.hasNext()) {
+                    Reader<T> reader = readers.get(in.nextName());
+                    if (reader == null)
+                        in.skipValue();
+                    else
+                        reader.read(in, value);
+                }
+                in.endObject();
+                return value;
+            }
+        }.nullSafe();
+    }
+}
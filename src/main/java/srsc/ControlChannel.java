@@ -0,0 +1,125 @@
+package srsc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/*
+ * Carries SADKDP and SRTSP messages over a TLS stream, in one of two
+ * framings:
+ *
+ *   hex    - the message in hex, one per line (the original format)
+ *   binary - VERSION | message length (int) | message
+ *
+ * The client picks the framing. The server answers in the framing of the
+ * first message it receives: a binary frame starts with the protocol's
+ * VERSION byte, which is never an ascii hex digit.
+ */
+public class ControlChannel {
+
+    public static final int BINARY_HEADER = 5;
+    public static final int MAX_MESSAGE = 1 << 20;
+
+    private final Socket socket;
+    private final byte version;
+    private final BufferedInputStream in;
+    private final DataOutputStream out;
+    private Boolean binary; // null until the server side sees the first message
+
+    /*
+     * Client side, binary picks the framing.
+     */
+    public ControlChannel(Socket socket, byte version, boolean binary) throws IOException {
+        this(socket, version, Boolean.valueOf(binary));
+    }
+
+    /*
+     * Server side, the framing is the client's.
+     */
+    public ControlChannel(Socket socket, byte version) throws IOException {
+        this(socket, version, null);
+    }
+
+    private ControlChannel(Socket socket, byte version, Boolean binary) throws IOException {
+        this.socket = socket;
+        this.version = version;
+        this.binary = binary;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /*
+     * The next message, null at the end of the stream.
+     */
+    public byte[] read() throws IOException {
+        if (binary == null) {
+            in.mark(1);
+            int first = in.read();
+            if (first < 0)
+                return null;
+            in.reset();
+            binary = !isHexDigit(first);
+        }
+        return binary ? readFrame() : readLine();
+    }
+
+    public void write(byte[] message) throws IOException {
+        if (binary == null || binary) {
+            out.writeByte(version);
+            out.writeInt(message.length);
+            out.write(message);
+        } else {
+            out.write(Utils.toByteArray(Utils.toHex(message)));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    public boolean isBinary() {
+        return binary == null || binary;
+    }
+
+    public void close() throws IOException {
+        out.close();
+        in.close();
+        socket.close();
+    }
+
+    public static boolean isHexDigit(int b) {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+
+    private byte[] readFrame() throws IOException {
+        int v = in.read();
+        if (v < 0)
+            return null;
+        DataInputStream data = new DataInputStream(in);
+        int length = data.readInt();
+        if (v != (version & 0xff) || length < 0 || length > MAX_MESSAGE)
+            throw new IOException("Bad frame");
+        byte[] message = new byte[length];
+        data.readFully(message);
+        return message;
+    }
+
+    private byte[] readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0)
+                    return null;
+                break;
+            }
+            if (b != '\r')
+                line.write(b);
+            if (line.size() > 2 * MAX_MESSAGE)
+                throw new IOException("Line too long");
+        }
+        return Utils.hexStringToByteArray(Utils.toString(line.toByteArray()));
+    }
+}
@@ -0,0 +1,60 @@
+package srsc;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Closes a socket whose handshake is not over by a deadline. setSoTimeout
+ * only bounds each read, a client sending a byte now and then would keep
+ * the server thread for as long as it likes.
+ *
+ *   try (HandshakeDeadline d = HandshakeDeadline.start(socket, millis)) {
+ *       ... the exchange, fails with an IOException once the socket is closed
+ *   }
+ *
+ * One timer thread for the whole process.
+ */
+public class HandshakeDeadline implements AutoCloseable {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "handshake-deadline");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ScheduledFuture<?> closer;
+    private volatile boolean expired;
+
+    private HandshakeDeadline(Socket socket, long millis) {
+        this.closer = millis <= 0 ? null : TIMER.schedule(() -> {
+            expired = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * millis <= 0 for no deadline.
+     */
+    public static HandshakeDeadline start(Socket socket, long millis) {
+        return new HandshakeDeadline(socket, millis);
+    }
+
+    // the socket was closed because the deadline passed
+    public boolean expired() {
+        return expired;
+    }
+
+    @Override
+    public void close() {
+        if (closer != null)
+            closer.cancel(false);
+    }
+}
@@ -0,0 +1,147 @@
+package srsc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import srsc.configEntities.*;
+
+/*
+ * The one Gson used for the configuration files and the SADKDP and SRTSP
+ * messages, with a TypeAdapter (the ADAPTER of each entity) for every
+ * configEntities and jsonEntities class instead of reflection.
+ *
+ * Each entity lists its fields once, with AdapterBuilder: name, kind, and
+ * lambdas reading and setting the field. Those lambdas live in the entity,
+ * so the fields stay private, and no annotation processor or code
+ * generation step is needed in the build. The adapters write the fields in
+ * that order (the declaration order) and leave out nulls, as reflective Gson
+ * does, so the JSON is the same byte for byte: the coin signatures over
+ * toByteArray() still verify. Gson is thread safe, GSON is shared by every
+ * thread.
+ */
+public class JsonCodec {
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(CipherMovie.class, CipherMovie.ADAPTER)
+            .registerTypeAdapter(Ciphersuite.class, Ciphersuite.ADAPTER)
+            .registerTypeAdapter(Coin.class, Coin.ADAPTER)
+            .registerTypeAdapter(CoinWithIntegrity.class, CoinWithIntegrity.ADAPTER)
+            .registerTypeAdapter(Confidentiality.class, Confidentiality.ADAPTER)
+            .registerTypeAdapter(Integrity.class, Integrity.ADAPTER)
+            .registerTypeAdapter(IssuedCoin.class, IssuedCoin.ADAPTER)
+            .registerTypeAdapter(ProxySessionConf.class, ProxySessionConf.ADAPTER)
+            .registerTypeAdapter(SignedCoin.class, SignedCoin.ADAPTER)
+            .registerTypeAdapter(TLSconfig.class, TLSconfig.ADAPTER)
+            .registerTypeAdapter(UserProxy.class, UserProxy.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.Authentication.class, srsc.sadkdp.jsonEntities.Authentication.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.AuthenticationRequest.class, srsc.sadkdp.jsonEntities.AuthenticationRequest.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.ErrorAlert.class, srsc.sadkdp.jsonEntities.ErrorAlert.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.Hello.class, srsc.sadkdp.jsonEntities.Hello.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.Payment.class, srsc.sadkdp.jsonEntities.Payment.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.PaymentRequest.class, srsc.sadkdp.jsonEntities.PaymentRequest.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.SignatureEnvelope.class, srsc.sadkdp.jsonEntities.SignatureEnvelope.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.TicketCredentials.class, srsc.sadkdp.jsonEntities.TicketCredentials.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.TicketCredentialsMessage.class, srsc.sadkdp.jsonEntities.TicketCredentialsMessage.ADAPTER)
+            .registerTypeAdapter(srsc.sadkdp.jsonEntities.TicketCredentialsReturn.class, srsc.sadkdp.jsonEntities.TicketCredentialsReturn.ADAPTER)
+            .registerTypeAdapter(srsc.srtsp.jsonEntities.AckVerification.class, srsc.srtsp.jsonEntities.AckVerification.ADAPTER)
+            .registerTypeAdapter(srsc.srtsp.jsonEntities.RequestAndCredentials.class, srsc.srtsp.jsonEntities.RequestAndCredentials.ADAPTER)
+            .registerTypeAdapter(srsc.srtsp.jsonEntities.RequestAndCredentialsSend.class, srsc.srtsp.jsonEntities.RequestAndCredentialsSend.ADAPTER)
+            .registerTypeAdapter(srsc.srtsp.jsonEntities.SyncInitialFrame.class, srsc.srtsp.jsonEntities.SyncInitialFrame.ADAPTER)
+            .registerTypeAdapter(srsc.srtsp.jsonEntities.TicketCredentials.class, srsc.srtsp.jsonEntities.TicketCredentials.ADAPTER)
+            .registerTypeAdapter(srsc.srtsp.jsonEntities.Verification.class, srsc.srtsp.jsonEntities.Verification.ADAPTER)
+            .create();
+
+    // byte[] as reflective Gson has it, an array of numbers
+    public static void writeBytes(JsonWriter out, byte[] value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (byte b : value)
+            out.value(b);
+        out.endArray();
+    }
+
+    public static void writeStrings(JsonWriter out, String[] value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (String s : value)
+            out.value(s);
+        out.endArray();
+    }
+
+    public static byte[] readBytes(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        in.beginArray();
+        while (in.hasNext())
+            bytes.write(in.nextInt());
+        in.endArray();
+        return bytes.toByteArray();
+    }
+
+    public static String[] readStrings(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<String> strings = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext())
+            strings.add(readString(in));
+        in.endArray();
+        return strings.toArray(new String[0]);
+    }
+
+    public static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (in.peek() == JsonToken.BOOLEAN)
+            return Boolean.toString(in.nextBoolean());
+        return in.nextString();
+    }
+
+    // a null leaves the field at its default, numbers may be quoted
+    public static int readInt(JsonReader in, int current) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return current;
+        }
+        return in.nextInt();
+    }
+
+    public static long readLong(JsonReader in, long current) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return current;
+        }
+        return in.nextLong();
+    }
+
+    public static boolean readBoolean(JsonReader in, boolean current) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return current;
+        }
+        if (in.peek() == JsonToken.STRING)
+            return Boolean.parseBoolean(in.nextString());
+        return in.nextBoolean();
+    }
+}
@@ -0,0 +1,128 @@
+package srsc;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * The keys of a keystore, unlocked once when built: the private key and
+ * the public key of every alias, so the handshakes do not decode the
+ * PKCS#12 entries again for every message.
+ *
+ * Also keeps, per thread, the SHA512withECDSA Signatures already
+ * initialised for each alias (a Signature is ready again after sign() or
+ * verify()), and an ECIES Cipher and an HmacSHA512 Mac, initialised on
+ * every call. What these return must be used before the same thread asks
+ * for it again.
+ */
+public class KeyService {
+
+    private final Map<String, PrivateKey> privateKeys;
+    private final Map<String, PublicKey> publicKeys;
+
+    private final ThreadLocal<Map<String, Signature>> signatures = ThreadLocal.withInitial(HashMap::new);
+    private final ThreadLocal<Cipher> ecies = new ThreadLocal<>();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    public KeyService(KeyStore ks, String keyStorePassword) throws GeneralSecurityException {
+        Map<String, PrivateKey> privateKeys = new HashMap<>();
+        Map<String, PublicKey> publicKeys = new HashMap<>();
+        for (Enumeration<String> aliases = ks.aliases(); aliases.hasMoreElements();) {
+            String alias = aliases.nextElement();
+            if (ks.isKeyEntry(alias)) {
+                Key key = ks.getKey(alias, keyStorePassword.toCharArray());
+                if (key instanceof PrivateKey)
+                    privateKeys.put(alias, (PrivateKey) key);
+            }
+            Certificate certificate = ks.getCertificate(alias);
+            if (certificate != null)
+                publicKeys.put(alias, certificate.getPublicKey());
+        }
+        this.privateKeys = Collections.unmodifiableMap(privateKeys);
+        this.publicKeys = Collections.unmodifiableMap(publicKeys);
+    }
+
+    public PrivateKey privateKey(String alias) throws KeyStoreException {
+        PrivateKey key = privateKeys.get(alias);
+        if (key == null)
+            throw new KeyStoreException("No private key " + alias);
+        return key;
+    }
+
+    public PublicKey publicKey(String alias) throws KeyStoreException {
+        PublicKey key = publicKeys.get(alias);
+        if (key == null)
+            throw new KeyStoreException("No certificate " + alias);
+        return key;
+    }
+
+    /*
+     * SHA512withECDSA, ready to sign with alias's private key.
+     */
+    public Signature signer(String alias) throws GeneralSecurityException {
+        Map<String, Signature> mine = signatures.get();
+        Signature s = mine.get("sign:" + alias);
+        if (s == null) {
+            s = Signature.getInstance("SHA512withECDSA", "BC");
+            s.initSign(privateKey(alias));
+            mine.put("sign:" + alias, s);
+        }
+        return s;
+    }
+
+    /*
+     * SHA512withECDSA, ready to verify with alias's public key.
+     */
+    public Signature verifier(String alias) throws GeneralSecurityException {
+        Map<String, Signature> mine = signatures.get();
+        Signature s = mine.get("verify:" + alias);
+        if (s == null) {
+            s = Signature.getInstance("SHA512withECDSA", "BC");
+            s.initVerify(publicKey(alias));
+            mine.put("verify:" + alias, s);
+        }
+        return s;
+    }
+
+    /*
+     * ECIES, initialised to encrypt to alias or to decrypt with its key.
+     */
+    public Cipher ecies(int mode, String alias) throws GeneralSecurityException {
+        Cipher cipher = ecies.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("ECIES", "BC");
+            ecies.set(cipher);
+        }
+        if (mode == Cipher.DECRYPT_MODE)
+            cipher.init(mode, privateKey(alias));
+        else
+            cipher.init(mode, publicKey(alias));
+        return cipher;
+    }
+
+    /*
+     * HmacSHA512 keyed with key.
+     */
+    public Mac mac(byte[] key) throws GeneralSecurityException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance("HmacSHA512");
+            macs.set(mac);
+        }
+        mac.init(new SecretKeySpec(key, "HmacSHA512"));
+        return mac;
+    }
+}
@@ -0,0 +1,232 @@
+package srsc;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/*
+ * The nonces seen by SADKDP or SRTSP, to refuse a replayed one.
+ *
+ * A nonce is remembered for at least window ms and then forgotten, so the
+ * memory used follows the rate of handshakes and not the uptime. Nothing
+ * is kept for good: a nonce that must never be accepted twice needs a
+ * signed time bounding when it can come (a ticket's NC1 has its issue
+ * time, see SRTSP) and a window covering that. Time is cut in buckets of
+ * window / (buckets - 1) ms, rounded up; a nonce goes in the bucket of the
+ * current time and a bucket is emptied when its time comes round again, so
+ * a nonce is forgotten between window and about window + one bucket ms
+ * after it was added. More buckets forget closer to the window, for more
+ * sets to look in on every lookup.
+ *
+ * The nonces are spread over stripes by hash, each with its own lock and
+ * its own ring of buckets, which are open addressing int sets.
+ *
+ * New nonces come from a DRBG per thread.
+ */
+public class NonceStore {
+
+    public static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toMillis(10);
+    public static final int DEFAULT_BUCKETS = 8;
+    public static final int DEFAULT_STRIPES = 16;
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    });
+
+    private final long bucketMillis;
+    private final Stripe[] stripes;
+    private final LongSupplier clock; // ms
+
+    public NonceStore() {
+        this(DEFAULT_WINDOW, DEFAULT_BUCKETS, DEFAULT_STRIPES);
+    }
+
+    public NonceStore(long windowMillis, int buckets, int stripes) {
+        this(windowMillis, buckets, stripes, System::currentTimeMillis);
+    }
+
+    public NonceStore(long windowMillis, int buckets, int stripes, LongSupplier clock) {
+        if (windowMillis <= 0)
+            throw new IllegalArgumentException("window must be positive: " + windowMillis);
+        if (buckets < 2)
+            throw new IllegalArgumentException("at least 2 buckets are needed: " + buckets);
+        if (stripes < 1 || stripes > 1 << 30)
+            throw new IllegalArgumentException("stripes out of range: " + stripes);
+        if (clock == null)
+            throw new IllegalArgumentException("no clock");
+        this.clock = clock;
+        // rounded up, so a nonce is kept at least the window
+        this.bucketMillis = (windowMillis - 1) / (buckets - 1) + 1;
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < this.stripes.length; i++)
+            this.stripes[i] = new Stripe(buckets);
+    }
+
+    /*
+     * The thread's DRBG, for salts and IVs as well.
+     */
+    public static SecureRandom random() {
+        return RANDOM.get();
+    }
+
+    /*
+     * Records nonce, false if it was seen within the window.
+     */
+    public boolean add(int nonce) {
+        return stripe(nonce).add(nonce, epoch());
+    }
+
+    public boolean contains(int nonce) {
+        return stripe(nonce).contains(nonce, epoch());
+    }
+
+    /*
+     * A random nonce whose answer (nonce + 1) was not seen.
+     */
+    public int next() {
+        int nonce;
+        do {
+            nonce = random().nextInt();
+        } while (contains(nonce + 1));
+        return nonce;
+    }
+
+    public int size() {
+        long epoch = epoch();
+        int size = 0;
+        for (Stripe s : stripes)
+            size += s.size(epoch);
+        return size;
+    }
+
+    private long epoch() {
+        return clock.getAsLong() / bucketMillis;
+    }
+
+    private Stripe stripe(int nonce) {
+        int h = nonce * 0x9E3779B9;
+        return stripes[(h >>> 16) & (stripes.length - 1)]; // IntSet.mix also takes in the low half
+    }
+
+    private static final class Stripe {
+        final IntSet[] sets;
+        final long[] epochs; // the time bucket each set holds
+
+        Stripe(int buckets) {
+            sets = new IntSet[buckets];
+            epochs = new long[buckets];
+            for (int i = 0; i < buckets; i++) {
+                sets[i] = new IntSet();
+                epochs[i] = -1;
+            }
+        }
+
+        synchronized boolean add(int nonce, long epoch) {
+            if (contains(nonce, epoch))
+                return false;
+            int i = (int) (epoch % sets.length);
+            if (epochs[i] != epoch) {
+                sets[i].clear();
+                epochs[i] = epoch;
+            }
+            sets[i].add(nonce);
+            return true;
+        }
+
+        synchronized boolean contains(int nonce, long epoch) {
+            for (int i = 0; i < sets.length; i++)
+                if (live(i, epoch) && sets[i].contains(nonce))
+                    return true;
+            return false;
+        }
+
+        synchronized int size(long epoch) {
+            int size = 0;
+            for (int i = 0; i < sets.length; i++)
+                if (live(i, epoch))
+                    size += sets[i].size;
+            return size;
+        }
+
+        private boolean live(int i, long epoch) {
+            return epoch - epochs[i] < sets.length;
+        }
+    }
+
+    // open addressing, 0 is kept apart as it marks a free slot
+    private static final class IntSet {
+        static final int INITIAL = 16;
+
+        int[] slots = new int[INITIAL];
+        int size;
+        boolean zero;
+
+        boolean contains(int v) {
+            if (v == 0)
+                return zero;
+            int mask = slots.length - 1;
+            for (int i = mix(v) & mask; slots[i] != 0; i = (i + 1) & mask)
+                if (slots[i] == v)
+                    return true;
+            return false;
+        }
+
+        void add(int v) {
+            if (v == 0) {
+                if (!zero)
+                    size++;
+                zero = true;
+                return;
+            }
+            if (2 * (size + 1) > slots.length)
+                rehash(slots.length * 2);
+            int mask = slots.length - 1;
+            int i = mix(v) & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask)
+                if (slots[i] == v)
+                    return;
+            slots[i] = v;
+            size++;
+        }
+
+        // sized for as many as the round that expires, so a burst does not stay allocated
+        void clear() {
+            int needed = INITIAL;
+            while (needed < 2 * size)
+                needed <<= 1;
+            if (slots.length > 2 * needed)
+                slots = new int[needed];
+            else
+                Arrays.fill(slots, 0);
+            size = 0;
+            zero = false;
+        }
+
+        private void rehash(int length) {
+            int[] old = slots;
+            slots = new int[length];
+            int mask = length - 1;
+            for (int v : old)
+                if (v != 0) {
+                    int i = mix(v) & mask;
+                    while (slots[i] != 0)
+                        i = (i + 1) & mask;
+                    slots[i] = v;
+                }
+        }
+
+        private static int mix(int v) {
+            int h = v * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
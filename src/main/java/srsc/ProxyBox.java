@@ -24,22 +24,36 @@ package srsc;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import com.google.gson.reflect.TypeToken;
+
+import srsc.configEntities.ProxySessionConf;
+import srsc.proxy.ProxySession;
+import srsc.proxy.ReceiveWorkers;
 import srsc.sadkdp.SADKDP;
-import srsc.sadkdp.jsonEntities.TicketCredentialsReturn;
-import srsc.srtsp.SRTSPDatagramSocket;
 import srsc.srtsp.SRTSP;
 
+/*
+ * With a movie id streams that one movie to localdelivery and exits. With a
+ * sessions file (<name>.json, see ProxySessions.json) runs every session in
+ * it at the same time, each on its own port and with its own destinations,
+ * up to maxProxySessions at once. With proxySessionsPoll set the file is read
+ * again every proxySessionsPoll seconds and new sessions, and those that
+ * failed, are started; otherwise the ProxyBox exits when they are all done.
+ *
+ * With proxyWorkers set, the sessions share that many decrypt threads and
+ * proxyFrames frame slots each (see ReceiveWorkers).
+ */
 class ProxyBox {
     public static void main(String[] args) throws Exception {
         InputStream inputStream = new FileInputStream("./src/main/resources/config.properties");
@@ -49,44 +63,68 @@ class ProxyBox {
         }
         Properties properties = new Properties();
         properties.load(inputStream);
-        String streamingUDP = properties.getProperty("streamingUDP");
         String proxyUDP = properties.getProperty("proxyUDP");
         String destinations = properties.getProperty("localdelivery");
 
         if (args.length != 10) {
-			System.out.println("Erro, usar: ProxyBox <movieId> <username> <password> <ProxyInfo> <keystore> <keystore-password> <truststore> <truststore-password> <tls-conf> <dtls-conf>");
+			System.out.println("Erro, usar: ProxyBox <movieId | sessions.json> <username> <password> <ProxyInfo> <keystore> <keystore-password> <truststore> <truststore-password> <tls-conf> <dtls-conf>");
 			System.exit(-1);
 		}
-        TicketCredentialsReturn tc = new SADKDP(args[4], args[5], args[6], args[7], args[8]).getTicket(properties.getProperty("signaling"), args[1], args[2], new String(Files.readAllBytes(Paths.get(args[3]))), args[0]);
-        new SRTSP(args[4], args[5], args[6], args[7], args[8]).requestMovie(tc);
-        
-        SocketAddress streamingSocketAddress = parseSocketAddress(streamingUDP);
-        SocketAddress inSocketAddress = parseSocketAddress(proxyUDP);
-        Set<SocketAddress> outSocketAddressSet = Arrays.stream(destinations.split(",")).map(s -> parseSocketAddress(s))
-                .collect(Collectors.toSet());
+        // shared by all the sessions
+        SADKDP sadkdp = new SADKDP(args[4], args[5], args[6], args[7], args[8]);
+        SRTSP srtsp = new SRTSP(args[4], args[5], args[6], args[7], args[8]);
+        boolean binaryFraming = !"hex".equals(properties.getProperty("controlFraming", "binary"));
+        sadkdp.setBinaryFraming(binaryFraming);
+        srtsp.setBinaryFraming(binaryFraming);
+        String proxyInfo = new String(Files.readAllBytes(Paths.get(args[3])));
+        InetSocketAddress inSocketAddress = ProxySession.parseSocketAddress(proxyUDP);
 
-        DatagramSocket inSocket = new SRTSPDatagramSocket(tc.getCiphersuiteConf(), false, args[4], args[5], args[6], args[7], args[9], streamingSocketAddress, inSocketAddress);
-        DatagramSocket outSocket = new DatagramSocket();
-        byte[] buffer = new byte[4 * 1024];
-
-        while (true) {
-            DatagramPacket inPacket = new DatagramPacket(buffer, buffer.length);
-            inSocket.receive(inPacket); // if remote is unicast
+        boolean single = !args[0].endsWith(".json");
+        int maxSessions = single ? 1 : Integer.parseInt(properties.getProperty("maxProxySessions", "4"));
+        int workerThreads = Integer.parseInt(properties.getProperty("proxyWorkers", "0"));
+        ReceiveWorkers workers = workerThreads <= 0 ? null
+                : new ReceiveWorkers(workerThreads,
+                        maxSessions * Integer.parseInt(properties.getProperty("proxyFrames", "256")),
+                        ProxySession.FRAME_SIZE);
 
-            if(inPacket.getLength() == 1 && buffer[0]==0x04) // eot ascii character
-                break;
+        if (single) {
+            new ProxySession(args[0], args[0], inSocketAddress, destinations.split(","), properties, sadkdp, srtsp,
+                    args[1], args[2], proxyInfo, args[4], args[5], args[6], args[7], args[9], workers).run();
+            return;
+        }
 
-            System.out.print("*");
-            for (SocketAddress outSocketAddress : outSocketAddressSet) {
-                outSocket.send(new DatagramPacket(buffer, inPacket.getLength(), outSocketAddress));
+        long poll = Long.parseLong(properties.getProperty("proxySessionsPoll", "0"));
+        ExecutorService sessions = Executors.newFixedThreadPool(maxSessions);
+        Map<String, ProxySession> started = new HashMap<>();
+        while (true) {
+            for (Map.Entry<String, ProxySessionConf> e : getSessions(args[0]).entrySet()) {
+                ProxySession previous = started.get(e.getKey());
+                if (previous != null && previous.getState() != ProxySession.State.FAILED)
+                    continue; // each session is bought once, unless it failed
+                ProxySessionConf conf = e.getValue();
+                InetSocketAddress address = conf.getPort() == 0 ? inSocketAddress
+                        : new InetSocketAddress(inSocketAddress.getHostString(), conf.getPort());
+                String delivery = conf.getLocaldelivery() == null ? destinations : conf.getLocaldelivery();
+                ProxySession session = new ProxySession(e.getKey(), conf.getMovie(), address, delivery.split(","),
+                        properties, sadkdp, srtsp, args[1], args[2], proxyInfo, args[4], args[5], args[6], args[7],
+                        args[9], workers);
+                started.put(e.getKey(), session);
+                sessions.execute(session);
+                System.out.println("Session " + e.getKey() + (previous == null ? " started: " : " restarted: ")
+                        + conf.getMovie() + " on " + address);
             }
+            if (poll <= 0)
+                break;
+            TimeUnit.SECONDS.sleep(poll);
         }
+        sessions.shutdown();
+        sessions.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
     }
 
-    private static InetSocketAddress parseSocketAddress(String socketAddress) {
-        String[] split = socketAddress.split(":");
-        String host = split[0];
-        int port = Integer.parseInt(split[1]);
-        return new InetSocketAddress(host, port);
+    private static Map<String, ProxySessionConf> getSessions(String pathToSessionsJSON) throws Exception {
+        String sessionsJSON = new String(Files.readAllBytes(Paths.get(pathToSessionsJSON)));
+        Type type = new TypeToken<Map<String, ProxySessionConf>>() {
+        }.getType();
+        return JsonCodec.GSON.fromJson(sessionsJSON, type);
     }
 }
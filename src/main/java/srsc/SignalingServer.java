@@ -25,7 +25,15 @@ public class SignalingServer {
 		}
 
         SADKDP server = new SADKDP(args[2], args[3], args[4], args[5], args[6]); //keystore, keystorepassword
-        server.startServer(properties.getProperty("signaling"), properties.getProperty("streaming"), args[0], args[1]); //port, userproxies, ciphermovies, truststore, truststorepassword, tlsconf
+        String spentCoinLog = properties.getProperty("spentCoinLog", "./spentcoins.log"); // empty: coins are not checked for double spending
+        if (!spentCoinLog.isEmpty())
+            server.setSpentCoinLog(spentCoinLog, Integer.parseInt(properties.getProperty("spentCoinCapacity", "65536")));
+        int threads = Integer.parseInt(properties.getProperty("signalingThreads", "1")); // clients served at a time, or crypto threads with nio
+        int timeout = Integer.parseInt(properties.getProperty("signalingTimeout", "0")); // ms a client has for its whole purchase, TLS handshake included
+        if ("nio".equals(properties.getProperty("signalingTransport", "blocking")))
+            server.startNioServer(properties.getProperty("signaling"), properties.getProperty("streaming"), args[0], args[1], threads, timeout);
+        else
+            server.startServer(properties.getProperty("signaling"), properties.getProperty("streaming"), args[0], args[1], threads, timeout); //port, userproxies, ciphermovies, truststore, truststorepassword, tlsconf
     }
     
 }
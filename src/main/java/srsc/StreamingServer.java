@@ -2,11 +2,23 @@ package srsc;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLSocket;
+
+import srsc.srtsp.jsonEntities.RequestAndCredentials;
 import srsc.srtsp.jsonEntities.TicketCredentials;
 import srsc.srtsp.SRTSP;
-import srsc.srtsp.SRTSPDatagramSocket;
+import srsc.streaming.FrameCache;
+import srsc.streaming.FramePacer;
+import srsc.streaming.StreamingSession;
 
 class StreamingServer {
 
@@ -25,46 +37,77 @@ class StreamingServer {
 			System.exit(-1);
 		}
 
-		SRTSP srtsp = new SRTSP(args[0], args[1], args[2], args[3], args[4]);
-		while (true) {
-			TicketCredentials tc = srtsp.startReceiveTicket(42169);
+		int maxSessions = Integer.parseInt(properties.getProperty("maxSessions", "16"));
+		FrameCache cache = new FrameCache(Long.parseLong(properties.getProperty("frameCacheBytes", "0")));
+		FramePacer pacer = new FramePacer(Integer.parseInt(properties.getProperty("pacerThreads", "2")));
+		// frames protected ahead of their deadline on this pool, 0 keeps the crypto on the pacer threads
+		int cryptoThreads = Integer.parseInt(properties.getProperty("cryptoThreads", "0"));
+		int pipelineDepth = Integer.parseInt(properties.getProperty("pipelineDepth", "8"));
+		ExecutorService cryptoPool = cryptoThreads <= 0 ? null
+				: new ForkJoinPool(cryptoThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		InetSocketAddress streamingSocketAddress = parseSocketAddress(streamingUDP);
 
-			int size;
-			int count = 0;
-			long time;
-			DataInputStream g = new DataInputStream( new FileInputStream("./src/main/resources/movies/" + tc.getMovieId() + ".dat"));
-			byte[] buff = new byte[4096];
+		// one UDP port per concurrent session, announced to the proxy in SRTSP message 4
+		BlockingQueue<Integer> freePorts = new ArrayBlockingQueue<>(maxSessions);
+		for (int i = 0; i < maxSessions; i++)
+			freePorts.add(streamingSocketAddress.getPort() + i);
+		// the pool only runs session setup (DTLS handshakes), frames are sent by the pacer threads
+		ExecutorService sessions = Executors.newFixedThreadPool(maxSessions);
 
-			InetSocketAddress addr = srtsp.getClientAddress();
-			SocketAddress streamingSocketAddress = parseSocketAddress(streamingUDP);
-			DatagramSocket s = new SRTSPDatagramSocket(tc.getCiphersuiteConf(), true, args[0], args[1], args[2], args[3], args[5], addr, streamingSocketAddress);
-			DatagramPacket p = new DatagramPacket(buff, buff.length, addr);
-			long t0 = System.nanoTime(); // tempo de referencia para este processo
-			long q0 = 0;
+		// ms a proxy has to redeem its ticket, TLS handshake included, and then to set up its media
+		int ticketTimeout = Integer.parseInt(properties.getProperty("ticketTimeout", "10000"));
 
-			while (g.available() > 0) {
-				size = g.readShort();
-				time = g.readLong();
-				if (count == 0)
-					q0 = time; // tempo de referencia no stream
-				count += 1;
-				g.readFully(buff, 0, size);
-				p.setData(buff, 0, size);
-				p.setSocketAddress(addr);
-				long t = System.nanoTime();
-				Thread.sleep(Math.max(0, ((time - q0) - (t - t0)) / 1000000));
+		// ms after it is issued a ticket can still be redeemed, once
+		long ticketLifetime = Long.parseLong(properties.getProperty("ticketLifetime", "300000"));
 
-				// send packet (with a frame payload)
-				// Frames sent in clear (no encryption)
-				s.send(p);
-				System.out.print(".");
+		SRTSP srtsp = new SRTSP(args[0], args[1], args[2], args[3], args[4]);
+		srtsp.setTicketLifetime(ticketLifetime);
+		AtomicInteger sessionIds = new AtomicInteger();
+		while (true) {
+			int port = freePorts.take(); // blocks while maxSessions viewers are being served
+
+			SSLSocket socket;
+			try {
+				socket = srtsp.accept(42169);
+			} catch (Exception e) {
+				e.printStackTrace();
+				freePorts.add(port);
+				continue;
 			}
-			byte[] endOfTransmission = {0x04}; // eot ascii character
-			p.setData(endOfTransmission);
-			p.setSocketAddress(addr);
-			s.send(p);
 
-			System.out.println("DONE! all frames sent: " + count);
+			// the ticket is redeemed on the session's thread, a slow proxy only holds its own port
+			sessions.execute(() -> {
+				RequestAndCredentials request;
+				DatagramChannel channel = null;
+				try {
+					// bound before it is announced, the proxy starts the DTLS handshake right away
+					channel = DatagramChannel.open().bind(new InetSocketAddress(streamingSocketAddress.getHostString(), port));
+					request = srtsp.receiveTicket(socket, port, ticketTimeout);
+				} catch (Exception e) {
+					e.printStackTrace();
+					try {
+						socket.close();
+						if (channel != null)
+							channel.close();
+					} catch (IOException e2) {
+						e2.printStackTrace();
+					}
+					freePorts.add(port);
+					return;
+				}
+
+				TicketCredentials tc = request.getTicketCredentials();
+				int sessionId = sessionIds.incrementAndGet();
+				StreamingSession session = new StreamingSession(sessionId, tc,
+						SRTSP.getClientAddress(socket, request.getPort()),
+						channel, args[0], args[1], args[2],
+						args[3], args[5], cache, pacer, cryptoPool, pipelineDepth, ticketTimeout, () -> {
+							freePorts.add(port);
+							System.out.println(cache);
+						});
+				System.out.println("Session " + sessionId + " accepted: " + tc.getMovieId() + " (" + (StreamingSession.getActiveSessions() + 1) + " active)");
+				session.run();
+			});
 		}
 	}
 
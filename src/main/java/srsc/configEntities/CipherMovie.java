@@ -1,5 +1,10 @@
 package srsc.configEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class CipherMovie {
     private String movie;
     private int ppvprice;
@@ -37,6 +42,11 @@ public class CipherMovie {
     public void setCiphersuite(Ciphersuite ciphersuite) {
         this.ciphersuite = ciphersuite;
     }
-    
-    
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<CipherMovie> ADAPTER = AdapterBuilder.of(CipherMovie::new)
+            .string("movie", v -> v.movie, (v, x) -> v.movie = x)
+            .integer("ppvprice", v -> v.ppvprice, (v, x) -> v.ppvprice = x)
+            .object("ciphersuite", Ciphersuite.ADAPTER, v -> v.ciphersuite, (v, x) -> v.ciphersuite = x)
+            .build();
 }
@@ -1,8 +1,21 @@
 package srsc.configEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class Ciphersuite {
+
+    // which layer protects the media packets
+    public static final String BOTH = "BOTH"; // SRTSP suite inside DTLS (default)
+    public static final String SRTSP = "SRTSP"; // SRTSP suite over plain UDP
+    public static final String DTLS = "DTLS"; // DTLS records only, SRTSP header in clear inside them
+
     Confidentiality confidentiality;
     Integrity integrity;
+    String protection;
+    int fec; // media packets per parity packet, 0 for no FEC
 
     public Ciphersuite(){
     }
@@ -27,5 +40,36 @@ public class Ciphersuite {
     public void setIntegrity(Integrity integrity) {
         this.integrity = integrity;
     }
-    
+
+    public String getProtection() {
+        return this.protection == null ? BOTH : this.protection;
+    }
+
+    public void setProtection(String protection) {
+        this.protection = protection;
+    }
+
+    public int getFec() {
+        return this.fec;
+    }
+
+    public void setFec(int fec) {
+        this.fec = fec;
+    }
+
+    public boolean usesDTLS() {
+        return !SRTSP.equals(getProtection());
+    }
+
+    public boolean usesSRTSP() {
+        return !DTLS.equals(getProtection());
+    }
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Ciphersuite> ADAPTER = AdapterBuilder.of(Ciphersuite::new)
+            .object("confidentiality", Confidentiality.ADAPTER, v -> v.confidentiality, (v, x) -> v.confidentiality = x)
+            .object("integrity", Integrity.ADAPTER, v -> v.integrity, (v, x) -> v.integrity = x)
+            .string("protection", v -> v.protection, (v, x) -> v.protection = x)
+            .integer("fec", v -> v.fec, (v, x) -> v.fec = x)
+            .build();
 }
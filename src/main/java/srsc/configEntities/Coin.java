@@ -1,7 +1,9 @@
 package srsc.configEntities;
 
-import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
 
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.Utils;
 
 public class Coin {
@@ -55,9 +57,15 @@ public class Coin {
 
 
     public byte[] toByteArray(){
-        Gson gson = new Gson();
-        String c = gson.toJson(this);
+        String c = JsonCodec.GSON.toJson(this);
         return Utils.toByteArray(c);
     }
-    
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Coin> ADAPTER = AdapterBuilder.of(Coin::new)
+            .string("name", v -> v.name, (v, x) -> v.name = x)
+            .string("coinIssuer", v -> v.coinIssuer, (v, x) -> v.coinIssuer = x)
+            .integer("coinValue", v -> v.coinValue, (v, x) -> v.coinValue = x)
+            .string("expireDate", v -> v.expireDate, (v, x) -> v.expireDate = x)
+            .build();
 }
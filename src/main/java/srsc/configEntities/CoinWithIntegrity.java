@@ -1,7 +1,9 @@
 package srsc.configEntities;
 
-import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
 
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.Utils;
 
 public class CoinWithIntegrity {
@@ -44,9 +46,14 @@ public class CoinWithIntegrity {
     }
 
     public byte[] toByteArray(){
-        Gson gson = new Gson();
-        String c = gson.toJson(this);
+        String c = JsonCodec.GSON.toJson(this);
         return Utils.toByteArray(c);
     }
 
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<CoinWithIntegrity> ADAPTER = AdapterBuilder.of(CoinWithIntegrity::new)
+            .object("issuedCoin", IssuedCoin.ADAPTER, v -> v.issuedCoin, (v, x) -> v.issuedCoin = x)
+            .string("integrityProof1", v -> v.integrityProof1, (v, x) -> v.integrityProof1 = x)
+            .string("integrityProof2", v -> v.integrityProof2, (v, x) -> v.integrityProof2 = x)
+            .build();
 }
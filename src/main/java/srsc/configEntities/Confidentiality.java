@@ -1,5 +1,9 @@
 package srsc.configEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.Utils;
 
 public class Confidentiality {
@@ -42,6 +46,14 @@ public class Confidentiality {
         this.key = keyspec;
     }
 
+    /*
+     * One pass authenticated encryption: the suite needs no integrity entry.
+     */
+    public boolean isAEAD() {
+        String s = this.spec.toUpperCase();
+        return s.contains("/GCM/") || s.equals("CHACHA20-POLY1305");
+    }
+
     public byte[] getIv() {
         return Utils.hexStringToByteArray(this.iv);
     }
@@ -50,4 +62,11 @@ public class Confidentiality {
         this.iv = Utils.toHex(iv);
     }
 
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Confidentiality> ADAPTER = AdapterBuilder.of(Confidentiality::new)
+            .string("spec", v -> v.spec, (v, x) -> v.spec = x)
+            .string("key", v -> v.key, (v, x) -> v.key = x)
+            .string("keyspec", v -> v.keyspec, (v, x) -> v.keyspec = x)
+            .string("iv", v -> v.iv, (v, x) -> v.iv = x)
+            .build();
 }
@@ -1,5 +1,9 @@
 package srsc.configEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.Utils;
 
 public class Integrity {
@@ -41,4 +45,10 @@ public class Integrity {
         this.key = Utils.toHex(key);
     }
 
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Integrity> ADAPTER = AdapterBuilder.of(Integrity::new)
+            .string("spec", v -> v.spec, (v, x) -> v.spec = x)
+            .string("key", v -> v.key, (v, x) -> v.key = x)
+            .string("keyspec", v -> v.keyspec, (v, x) -> v.keyspec = x)
+            .build();
 }
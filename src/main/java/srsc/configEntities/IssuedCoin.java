@@ -1,7 +1,9 @@
 package srsc.configEntities;
 
-import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
 
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.Utils;
 
 public class IssuedCoin {
@@ -44,9 +46,14 @@ public class IssuedCoin {
     }
 
     public byte[] toByteArray(){
-        Gson gson = new Gson();
-        String c = gson.toJson(this);
+        String c = JsonCodec.GSON.toJson(this);
         return Utils.toByteArray(c);
     }
 
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<IssuedCoin> ADAPTER = AdapterBuilder.of(IssuedCoin::new)
+            .object("signedCoin", SignedCoin.ADAPTER, v -> v.signedCoin, (v, x) -> v.signedCoin = x)
+            .string("issueSignature", v -> v.issueSignature, (v, x) -> v.issueSignature = x)
+            .string("issuePublicKey", v -> v.issuePublicKey, (v, x) -> v.issuePublicKey = x)
+            .build();
 }
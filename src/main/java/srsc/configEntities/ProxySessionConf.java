@@ -0,0 +1,51 @@
+package srsc.configEntities;
+
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
+public class ProxySessionConf {
+    private String movie, localdelivery;
+    private int port;
+
+    public ProxySessionConf() {
+    }
+
+    public ProxySessionConf(String movie, int port, String localdelivery) {
+        this.movie = movie;
+        this.port = port;
+        this.localdelivery = localdelivery;
+    }
+
+    public String getMovie() {
+        return this.movie;
+    }
+
+    public void setMovie(String movie) {
+        this.movie = movie;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getLocaldelivery() {
+        return this.localdelivery;
+    }
+
+    public void setLocaldelivery(String localdelivery) {
+        this.localdelivery = localdelivery;
+    }
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<ProxySessionConf> ADAPTER = AdapterBuilder.of(ProxySessionConf::new)
+            .string("movie", v -> v.movie, (v, x) -> v.movie = x)
+            .string("localdelivery", v -> v.localdelivery, (v, x) -> v.localdelivery = x)
+            .integer("port", v -> v.port, (v, x) -> v.port = x)
+            .build();
+}
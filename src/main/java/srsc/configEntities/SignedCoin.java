@@ -1,7 +1,9 @@
 package srsc.configEntities;
 
-import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
 
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.Utils;
 
 public class SignedCoin {
@@ -44,10 +46,14 @@ public class SignedCoin {
     }
 
     public byte[] toByteArray(){
-        Gson gson = new Gson();
-        String c = gson.toJson(this);
+        String c = JsonCodec.GSON.toJson(this);
         return Utils.toByteArray(c);
     }
 
-    
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<SignedCoin> ADAPTER = AdapterBuilder.of(SignedCoin::new)
+            .object("coin", Coin.ADAPTER, v -> v.coin, (v, x) -> v.coin = x)
+            .string("coinPublicKey", v -> v.coinPublicKey, (v, x) -> v.coinPublicKey = x)
+            .string("coinAuthenticity", v -> v.coinAuthenticity, (v, x) -> v.coinAuthenticity = x)
+            .build();
 }
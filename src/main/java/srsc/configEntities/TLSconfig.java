@@ -1,5 +1,10 @@
 package srsc.configEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class TLSconfig {
     private String authentication;
     private String version;
@@ -37,5 +42,11 @@ public class TLSconfig {
     public void setCiphersuites(String[] ciphersuites) {
         this.ciphersuites = ciphersuites;
     }
-    
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<TLSconfig> ADAPTER = AdapterBuilder.of(TLSconfig::new)
+            .string("authentication", v -> v.authentication, (v, x) -> v.authentication = x)
+            .string("version", v -> v.version, (v, x) -> v.version = x)
+            .strings("ciphersuites", v -> v.ciphersuites, (v, x) -> v.ciphersuites = x)
+            .build();
 }
@@ -1,5 +1,10 @@
 package srsc.configEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class UserProxy {
     private String userId, password, proxyBoxID;
 
@@ -36,4 +41,10 @@ public class UserProxy {
         this.proxyBoxID = proxyId;
     }
 
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<UserProxy> ADAPTER = AdapterBuilder.of(UserProxy::new)
+            .string("userId", v -> v.userId, (v, x) -> v.userId = x)
+            .string("password", v -> v.password, (v, x) -> v.password = x)
+            .string("proxyBoxID", v -> v.proxyBoxID, (v, x) -> v.proxyBoxID = x)
+            .build();
 }
@@ -0,0 +1,159 @@
+package srsc.proxy;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/*
+ * Sends each decrypted frame to every local delivery destination: the frame
+ * is copied once into a direct buffer and that same buffer goes out to all
+ * of them through one DatagramChannel.
+ *
+ * Destinations may have a rate limit (token bucket, bytes per second, with
+ * a burst of BURST_MILLIS worth of bytes or one frame): a frame over the
+ * limit is not sent to that destination. Send errors are counted per
+ * destination and do not stop the others.
+ *
+ * When a destination is a multicast group the channel is set up for it:
+ * outgoing interface (by name, or the first one up that supports
+ * multicast), TTL and loopback, so players on this host also get it.
+ *
+ * Not thread safe.
+ */
+public class FanOut {
+
+    private static final long BURST_MILLIS = 100;
+
+    private static final class Destination {
+        final InetSocketAddress address;
+        final long rate; // bytes per second, 0 for no limit
+        final long burst;
+        double tokens;
+        long last;
+        long sent, bytes, throttled, errors;
+
+        Destination(InetSocketAddress address, long rate, int maxFrame) {
+            this.address = address;
+            this.rate = rate;
+            this.burst = Math.max(rate * BURST_MILLIS / 1000, maxFrame);
+            this.tokens = burst;
+            this.last = System.nanoTime();
+        }
+
+        boolean allow(int length) {
+            if (rate <= 0)
+                return true;
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+            if (tokens < length)
+                return false;
+            tokens -= length;
+            return true;
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer;
+    private final List<Destination> destinations = new ArrayList<>();
+
+    /*
+     * destinations are "host:port" or "host:port@bytesPerSecond", without a
+     * limit of their own they get defaultRate (0 for none).
+     */
+    public FanOut(String[] destinations, long defaultRate, int maxFrame, String multicastInterface,
+            int multicastTTL) throws IOException {
+        boolean multicast = false, ipv6 = false;
+        for (String d : destinations) {
+            String[] split = d.trim().split("@");
+            InetSocketAddress address = parseSocketAddress(split[0]);
+            long rate = split.length > 1 ? Long.parseLong(split[1]) : defaultRate;
+            if (this.destinations.stream().anyMatch(x -> x.address.equals(address)))
+                continue;
+            this.destinations.add(new Destination(address, rate, maxFrame));
+            multicast |= address.getAddress().isMulticastAddress();
+            ipv6 |= address.getAddress() instanceof Inet6Address;
+        }
+
+        channel = DatagramChannel.open(ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        if (multicast) {
+            NetworkInterface ni = multicastInterface == null || multicastInterface.isEmpty()
+                    ? defaultMulticastInterface()
+                    : NetworkInterface.getByName(multicastInterface);
+            if (ni != null)
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTTL);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        }
+        buffer = ByteBuffer.allocateDirect(maxFrame);
+    }
+
+    /*
+     * Sends data[off, off+len) to every destination within its rate.
+     */
+    public void send(byte[] data, int off, int len) {
+        buffer.clear();
+        buffer.put(data, off, len).flip();
+        for (Destination d : destinations) {
+            if (!d.allow(len)) {
+                d.throttled++;
+                continue;
+            }
+            buffer.rewind();
+            try {
+                if (channel.send(buffer, d.address) > 0) {
+                    d.sent++;
+                    d.bytes += len;
+                } else {
+                    d.errors++; // no room in the socket buffer
+                }
+            } catch (IOException e) {
+                if (d.errors++ == 0) // once per destination, a player that is not there fails every send
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("fan out:");
+        for (Destination d : destinations)
+            sb.append(String.format("%n  %s: %d sent, %d bytes, %d throttled, %d errors", d.address, d.sent, d.bytes,
+                    d.throttled, d.errors));
+        return sb.toString();
+    }
+
+    private static NetworkInterface defaultMulticastInterface() throws SocketException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        NetworkInterface loopback = null;
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface ni = interfaces.nextElement();
+            if (!ni.isUp() || !ni.supportsMulticast())
+                continue;
+            if (!ni.isLoopback())
+                return ni;
+            loopback = ni;
+        }
+        return loopback;
+    }
+
+    private static InetSocketAddress parseSocketAddress(String socketAddress) {
+        String[] split = socketAddress.split(":");
+        String host = split[0];
+        int port = Integer.parseInt(split[1]);
+        return new InetSocketAddress(host, port);
+    }
+}
@@ -0,0 +1,252 @@
+package srsc.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Playout buffer of the ProxyBox: frames go in as they are received, in any
+ * order, and come out in sequence order at their original pace.
+ *
+ * Frames are kept in a ring indexed by SRTSP sequence number. The playout
+ * time of a frame is its media timestamp (nanoseconds) plus the smallest
+ * transit (arrival - timestamp) seen so far plus a target delay, which
+ * follows the interarrival jitter estimate of RFC 3550 (JITTER_FACTOR times
+ * the jitter, within [minDelay, maxDelay]).
+ *
+ * A frame arriving after its turn was played (or skipped) is a late drop.
+ * When the next frame is missing but a later one is due, the missing ones
+ * are skipped as lost. An underrun is the buffer running empty while
+ * playing until the next frame is overdue.
+ *
+ * One receiving thread calls offer() and close(), one playout thread calls
+ * take().
+ */
+public class JitterBuffer {
+
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long UNDERRUN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int JITTER_FACTOR = 4;
+
+    private static final class Slot {
+        long seq = -1;
+        long timestamp;
+        int length;
+        byte[] data = new byte[0];
+        boolean full;
+    }
+
+    private final Slot[] slots;
+    private final long minDelay, maxDelay;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private boolean started, closed, empty;
+    private long next; // sequence number to play next
+    private int depth;
+
+    private long lastTransit, minTransit;
+    private double jitter; // nanoseconds
+    private long target;
+
+    private long received, played, late, lost, overflows, underruns, duplicates;
+    private long depthSum;
+    private int maxDepth;
+
+    public JitterBuffer(int capacity, long minDelayNanos, long maxDelayNanos) {
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++)
+            slots[i] = new Slot();
+        this.minDelay = minDelayNanos;
+        this.maxDelay = maxDelayNanos;
+        this.target = minDelayNanos;
+    }
+
+    /*
+     * Buffers a copy of data[off, off+len), the frame with sequence number
+     * seq and media timestamp timestamp.
+     */
+    public void offer(long seq, long timestamp, byte[] data, int off, int len) {
+        lock.lock();
+        try {
+            estimate(System.nanoTime() - timestamp);
+            if (!started) {
+                next = seq;
+                started = true;
+            }
+            if (seq < next) {
+                late++;
+                return;
+            }
+            if (seq >= next + slots.length) // too far ahead: give up the oldest
+                skip(seq - slots.length + 1);
+
+            Slot s = slot(seq);
+            if (s.full && s.seq == seq) {
+                duplicates++;
+                return;
+            }
+            if (s.data.length < len)
+                s.data = new byte[len];
+            System.arraycopy(data, off, s.data, 0, len);
+            s.seq = seq;
+            s.timestamp = timestamp;
+            s.length = len;
+            s.full = true;
+
+            received++;
+            depth++;
+            depthSum += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * No more frames will be offered: take() plays what is left, then
+     * returns -1.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Waits for the playout time of the next frame and copies it into out.
+     * Returns its length, or -1 once closed and drained.
+     */
+    public int take(byte[] out) throws InterruptedException {
+        while (true) {
+            long deadline;
+            lock.lock();
+            try {
+                Slot due = due();
+                if (due == null) {
+                    if (closed)
+                        return -1;
+                    empty = played > 0;
+                    changed.await();
+                    continue;
+                }
+                deadline = playout(due.timestamp);
+                if (empty) { // ran dry while playing, and the frame that came in is overdue
+                    if (System.nanoTime() - deadline > UNDERRUN_NANOS)
+                        underruns++;
+                    empty = false;
+                }
+                long wait = deadline - System.nanoTime();
+                if (wait > SPIN_NANOS) {
+                    changed.awaitNanos(wait - SPIN_NANOS);
+                    continue;
+                }
+                if (wait <= 0)
+                    return play(due, out);
+            } finally {
+                lock.unlock();
+            }
+
+            // close to the deadline: spin without holding the lock, then
+            // play whatever is due first by then
+            while (System.nanoTime() < deadline)
+                Thread.onSpinWait();
+            lock.lock();
+            try {
+                Slot due = due();
+                if (due != null)
+                    return play(due, out);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public String getStats() {
+        lock.lock();
+        try {
+            return String.format(
+                    "jitter buffer: %d received, %d played, depth mean %.1f max %d, %d late, %d lost, %d duplicates, %d overflows, %d underruns, jitter %d us, delay %d ms",
+                    received, played, received == 0 ? 0.0 : (double) depthSum / received, maxDepth, late, lost,
+                    duplicates, overflows, underruns, (long) jitter / 1000, target / 1000000);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getStats();
+    }
+
+    // RFC 3550 interarrival jitter, J += (|D| - J) / 16, over the transit
+    // times, which differ from the D of two packets by a constant only
+    private void estimate(long transit) {
+        if (!started) {
+            minTransit = transit;
+        } else {
+            jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+            minTransit = Math.min(minTransit, transit);
+        }
+        lastTransit = transit;
+        target = Math.max(minDelay, Math.min(maxDelay, (long) (JITTER_FACTOR * jitter)));
+    }
+
+    private long playout(long timestamp) {
+        return timestamp + minTransit + target;
+    }
+
+    // the next frame, or the first buffered one after it (the frames in
+    // between are lost if they do not arrive before it is played)
+    private Slot due() {
+        if (depth == 0)
+            return null;
+        for (long seq = next; seq < next + slots.length; seq++) {
+            Slot s = slot(seq);
+            if (s.full && s.seq == seq)
+                return s;
+        }
+        return null;
+    }
+
+    private int play(Slot s, byte[] out) {
+        skip(s.seq);
+        System.arraycopy(s.data, 0, out, 0, s.length);
+        s.full = false;
+        depth--;
+        next = s.seq + 1;
+        played++;
+        return s.length;
+    }
+
+    // moves next up to seq, dropping the frames buffered in between
+    private void skip(long seq) {
+        if (seq - next > slots.length) { // a long gap, every buffered frame goes
+            for (Slot s : slots)
+                s.full = false;
+            overflows += depth;
+            lost += seq - next - depth;
+            depth = 0;
+            next = seq;
+        }
+        for (; next < seq; next++) {
+            Slot s = slot(next);
+            if (s.full && s.seq == next) {
+                s.full = false;
+                depth--;
+                overflows++;
+            } else {
+                lost++;
+            }
+        }
+    }
+
+    private Slot slot(long seq) {
+        return slots[(int) (seq % slots.length)];
+    }
+}
@@ -0,0 +1,83 @@
+package srsc.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue for any number of producer and consumer threads,
+ * over a preallocated array (Vyukov's bounded MPMC queue). Every cell has a
+ * sequence number telling whose turn it is: a producer claims the tail with
+ * a CAS when the cell's sequence equals it, a consumer the head when it is
+ * one past it; the item is published with a release store of the sequence.
+ */
+public class MpmcRing<T> {
+
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // next to poll
+    private final AtomicLong tail = new AtomicLong(); // next to offer
+
+    public MpmcRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /*
+     * False if the ring is full.
+     */
+    public boolean offer(T item) {
+        while (true) {
+            long t = tail.get();
+            int i = (int) (t & mask);
+            long s = sequences.get(i);
+            if (s == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    items[i] = item;
+                    sequences.lazySet(i, t + 1);
+                    return true;
+                }
+            } else if (s < t) {
+                return false; // not polled yet since the last lap
+            }
+            // else another producer got there first, try the next cell
+        }
+    }
+
+    /*
+     * Null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        while (true) {
+            long h = head.get();
+            int i = (int) (h & mask);
+            long s = sequences.get(i);
+            if (s == h + 1) {
+                if (head.compareAndSet(h, h + 1)) {
+                    T item = (T) items[i];
+                    items[i] = null;
+                    sequences.lazySet(i, h + items.length);
+                    return item;
+                }
+            } else if (s < h + 1) {
+                return null; // not offered yet
+            }
+            // else another consumer got there first, try the next cell
+        }
+    }
+
+    // a snapshot, only exact when no other thread is using the ring
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
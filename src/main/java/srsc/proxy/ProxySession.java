@@ -0,0 +1,203 @@
+package srsc.proxy;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import srsc.sadkdp.SADKDP;
+import srsc.sadkdp.jsonEntities.TicketCredentialsReturn;
+import srsc.srtsp.SRTSP;
+import srsc.srtsp.SRTSPDatagramSocket;
+
+/*
+ * One viewing session of the ProxyBox: buys a ticket for the movie (SADKDP),
+ * redeems it (SRTSP) announcing the UDP port it receives on, and forwards
+ * the decrypted stream to its own local delivery destinations until the end
+ * of transmission.
+ *
+ * The SADKDP and SRTSP endpoints (and their TLS contexts) are shared by all
+ * the sessions of a ProxyBox, so are the DTLS contexts (see DTLSSocket) and
+ * the decrypt workers and frame slots (see ReceiveWorkers). Each session has
+ * its own socket, receiver thread, jitter buffer and FanOut.
+ */
+public class ProxySession implements Runnable {
+
+    public enum State {
+        CREATED, SETUP, STREAMING, DONE, FAILED
+    }
+
+    public static final int FRAME_SIZE = 4 * 1024;
+
+    private final String name, movieId;
+    private final InetSocketAddress address; // where the media is received
+    private final String[] destinations;
+    private final Properties properties;
+    private final SADKDP sadkdp;
+    private final SRTSP srtsp;
+    private final String username, password, proxyInfo;
+    private final String keystore, keystorePassword, truststore, truststorePassword, dtlsConf;
+    private final ReceiveWorkers workers; // null to decrypt on the session's thread
+
+    private volatile State state = State.CREATED;
+    private String stats = "";
+
+    public ProxySession(String name, String movieId, InetSocketAddress address, String[] destinations,
+            Properties properties, SADKDP sadkdp, SRTSP srtsp, String username, String password, String proxyInfo,
+            String keystore, String keystorePassword, String truststore, String truststorePassword,
+            String dtlsConf, ReceiveWorkers workers) {
+        this.name = name;
+        this.movieId = movieId;
+        this.address = address;
+        this.destinations = destinations;
+        this.properties = properties;
+        this.sadkdp = sadkdp;
+        this.srtsp = srtsp;
+        this.username = username;
+        this.password = password;
+        this.proxyInfo = proxyInfo;
+        this.keystore = keystore;
+        this.keystorePassword = keystorePassword;
+        this.truststore = truststore;
+        this.truststorePassword = truststorePassword;
+        this.dtlsConf = dtlsConf;
+        this.workers = workers;
+    }
+
+    @Override
+    public void run() {
+        try {
+            stream();
+            state = State.DONE;
+        } catch (Exception e) {
+            state = State.FAILED;
+            e.printStackTrace();
+        }
+        System.out.println();
+        System.out.println(this);
+    }
+
+    private void stream() throws Exception {
+        state = State.SETUP;
+        TicketCredentialsReturn tc = sadkdp.getTicket(properties.getProperty("signaling"), username, password,
+                proxyInfo, movieId);
+        int streamingPort = srtsp.requestMovie(tc, address.getPort());
+
+        InetSocketAddress streamingSocketAddress = parseSocketAddress(properties.getProperty("streamingUDP"));
+        if (streamingPort != 0) // the streaming server picked a session port for us
+            streamingSocketAddress = new InetSocketAddress(streamingSocketAddress.getHostString(), streamingPort);
+
+        SRTSPDatagramSocket inSocket = new SRTSPDatagramSocket(tc.getCiphersuiteConf(), false, keystore,
+                keystorePassword, truststore, truststorePassword, dtlsConf, streamingSocketAddress, address);
+        int receiveBuffer = Integer.parseInt(properties.getProperty("proxyReceiveBuffer", "0"));
+        if (receiveBuffer > 0) // room for bursts while the stages behind the socket catch up
+            inSocket.setReceiveBufferSize(receiveBuffer);
+        byte[] buffer = new byte[FRAME_SIZE];
+        DatagramPacket inPacket = new DatagramPacket(buffer, buffer.length);
+        // every destination may be host:port@bytesPerSecond
+        FanOut fanOut = new FanOut(destinations, Long.parseLong(properties.getProperty("localdeliveryRate", "0")),
+                buffer.length, properties.getProperty("multicastInterface"),
+                Integer.parseInt(properties.getProperty("multicastTTL", "1")));
+        state = State.STREAMING;
+
+        // frames reordered and played out at their original pace, 0 slots forwards them as received
+        int jitterSlots = Integer.parseInt(properties.getProperty("jitterSlots", "0"));
+        JitterBuffer jitter = jitterSlots <= 0 ? null
+                : new JitterBuffer(jitterSlots,
+                        TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("jitterMinDelay", "20"))),
+                        TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("jitterMaxDelay", "500"))));
+        byte[] outBuffer = new byte[buffer.length];
+
+        Thread playout = null;
+        if (jitter != null) {
+            playout = new Thread(() -> {
+                try {
+                    int length;
+                    while ((length = jitter.take(outBuffer)) >= 0)
+                        forward(fanOut, outBuffer, length);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "playout-" + name);
+            playout.setPriority(Thread.MAX_PRIORITY);
+            playout.start();
+        }
+
+        // receive, decrypt and forward on separate threads, without workers it is all done on this one
+        ReceivePipeline pipeline = null;
+        try {
+            if (workers != null) {
+                pipeline = new ReceivePipeline(inSocket, workers,
+                        Integer.parseInt(properties.getProperty("proxyFrames", "256")));
+                pipeline.run((seq, timestamp, data, length) -> {
+                    if (length == 1 && data[0] == 0x04) // eot ascii character
+                        return false;
+                    if (jitter == null)
+                        forward(fanOut, data, length);
+                    else
+                        jitter.offer(seq, timestamp, data, 0, length);
+                    return true;
+                });
+            } else {
+                while (true) {
+                    inPacket.setLength(buffer.length);
+                    inSocket.receive(inPacket); // if remote is unicast
+
+                    if (inPacket.getLength() == 1 && buffer[0] == 0x04) // eot ascii character
+                        break;
+
+                    if (jitter == null)
+                        forward(fanOut, buffer, inPacket.getLength());
+                    else
+                        jitter.offer(inSocket.getReceivedSequence(), inSocket.getReceivedTimestamp(), buffer, 0,
+                                inPacket.getLength());
+                }
+            }
+        } finally {
+            if (jitter != null) {
+                jitter.close();
+                playout.join();
+            }
+            inSocket.close();
+            fanOut.close();
+
+            StringBuilder sb = new StringBuilder();
+            if (jitter != null)
+                sb.append(String.format("%n")).append(jitter);
+            if (pipeline != null)
+                sb.append(String.format("%n")).append(pipeline);
+            else
+                sb.append(String.format("%n%d packets dropped, did not authenticate", inSocket.getDropped()));
+            sb.append(String.format("%n")).append(fanOut);
+            sb.append(String.format("%n")).append(inSocket.getReplayWindow());
+            if (inSocket.getFecDecoder() != null)
+                sb.append(String.format("%n")).append(inSocket.getFecDecoder());
+            stats = sb.toString();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Session %s (%s on %s): %s%s", name, movieId, address, state, stats);
+    }
+
+    private static void forward(FanOut fanOut, byte[] data, int length) {
+        System.out.print("*");
+        fanOut.send(data, 0, length);
+    }
+
+    public static InetSocketAddress parseSocketAddress(String socketAddress) {
+        String[] split = socketAddress.split(":");
+        String host = split[0];
+        int port = Integer.parseInt(split[1]);
+        return new InetSocketAddress(host, port);
+    }
+}
@@ -0,0 +1,224 @@
+package srsc.proxy;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import srsc.srtsp.ReplayWindow;
+import srsc.srtsp.SRTSPDatagramSocket;
+import srsc.srtsp.SRTSPPacketCodec;
+
+/*
+ * The ProxyBox receive path of one session in three stages, so slow crypto
+ * does not keep the socket from being drained:
+ *
+ *   receiver  - socket receive, DTLS unwrap, FEC (SRTSPDatagramSocket.receivePacket)
+ *   workers   - replay check, SRTSP decrypt and verify
+ *   forwarder - hands the frames, in order, to the sink (the caller's thread)
+ *
+ * The workers and the frame slots are shared by every session of the box
+ * (see ReceiveWorkers). The receiver takes a free slot, fills it, puts it in
+ * this session's in-flight ring and hands it to the workers; the forwarder
+ * takes the slots from the ring, so in the stream order, waits for each to
+ * be decrypted and gives it back to the pool. A session holds at most
+ * frames slots (plus the one being received), so one busy session does not
+ * take the pool from the others. A worker passes dropped frames on too,
+ * marked invalid.
+ *
+ * Each session has a codec per worker thread, a worker borrows one of its
+ * session's for the frame.
+ *
+ * A stage with nothing to do spins briefly, then yields, then parks.
+ */
+public class ReceivePipeline {
+
+    public interface Sink {
+        /*
+         * One decrypted frame, data is only valid during the call. Returns
+         * false to stop the pipeline (end of transmission).
+         */
+        boolean frame(long seq, long timestamp, byte[] data, int length) throws Exception;
+    }
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // a slot of the shared pool, and the task that decrypts it
+    static final class Frame implements Runnable {
+        final byte[] data;
+        final DatagramPacket packet;
+        ReceivePipeline owner;
+        int length;
+        long seq, timestamp;
+        boolean valid;
+        volatile boolean done;
+
+        Frame(int size) {
+            data = new byte[size];
+            packet = new DatagramPacket(data, size);
+        }
+
+        @Override
+        public void run() {
+            try {
+                owner.decrypt(this);
+            } finally {
+                done = true;
+            }
+        }
+    }
+
+    private final SRTSPDatagramSocket socket;
+    private final ReplayWindow window;
+    private final ReceiveWorkers workers;
+    private final SpscRing<Frame> inFlight;
+    private final MpmcRing<SRTSPPacketCodec> codecs;
+    private final int frames;
+    private volatile boolean stopped;
+    private volatile IOException failure; // the receiver's, rethrown by run()
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long receiverWaits; // receiver found no free slot
+
+    public ReceivePipeline(SRTSPDatagramSocket socket, ReceiveWorkers workers, int frames)
+            throws GeneralSecurityException {
+        this.socket = socket;
+        this.window = socket.getReplayWindow();
+        this.workers = workers;
+        this.frames = frames;
+        inFlight = new SpscRing<>(frames);
+        // no more frames of this session are decrypted at once than there are workers
+        codecs = new MpmcRing<>(workers.threads);
+        for (int i = 0; i < workers.threads; i++)
+            codecs.offer(socket.newCodec());
+    }
+
+    /*
+     * Starts the receiver and forwards frames to sink until it returns false
+     * or the socket fails, then throws the receiver's exception. Closes the
+     * socket and gives the slots back when done. Must be called by the
+     * thread that built the pipeline.
+     */
+    public void run(Sink sink) throws Exception {
+        Thread receiver = new Thread(this::receive, "receiver");
+        receiver.setPriority(Thread.MAX_PRIORITY);
+        receiver.start();
+
+        try {
+            while (!stopped) {
+                Frame f = next();
+                if (f == null)
+                    break;
+                boolean more = !f.valid || sink.frame(f.seq, f.timestamp, f.data, f.length);
+                workers.free.offer(f);
+                if (!more)
+                    break;
+            }
+        } finally {
+            stopped = true;
+            socket.close(); // unblocks the receiver
+            receiver.join();
+            // the receiver is gone, the ring is ours; let the workers finish with what is left
+            Frame f;
+            while ((f = inFlight.poll()) != null) {
+                for (int idle = 0; !f.done; idle++)
+                    idle(idle);
+                workers.free.offer(f);
+            }
+        }
+        if (failure != null) // the session failed, it did not end
+            throw failure;
+    }
+
+    // the next frame in stream order, once decrypted; null if stopped
+    private Frame next() {
+        Frame f;
+        for (int idle = 0; (f = inFlight.poll()) == null; idle++) {
+            if (stopped)
+                return null;
+            idle(idle);
+        }
+        for (int idle = 0; !f.done; idle++)
+            idle(idle);
+        return f;
+    }
+
+    private void receive() {
+        Frame f = null;
+        try {
+            while (!stopped) {
+                for (int idle = 0; (f = workers.free.poll()) == null; idle++) {
+                    if (stopped)
+                        return;
+                    if (idle == 0)
+                        receiverWaits++;
+                    idle(idle);
+                }
+                f.owner = this;
+                f.done = false;
+                f.packet.setData(f.data, 0, f.data.length);
+                socket.receivePacket(f.packet);
+                f.length = f.packet.getLength();
+                for (int idle = 0; !inFlight.offer(f); idle++) { // frames slots in flight already
+                    if (stopped)
+                        return;
+                    idle(idle);
+                }
+                workers.tasks.offer(f); // never full, it can hold every slot
+                f = null;
+            }
+        } catch (IOException e) {
+            if (!stopped) // not the socket closed by run()
+                failure = e;
+        } finally {
+            stopped = true;
+            if (f != null) // taken from the pool but not handed on
+                workers.free.offer(f);
+        }
+    }
+
+    private void decrypt(Frame f) {
+        SRTSPPacketCodec codec = codecs.poll();
+        f.valid = false;
+        long seq = SRTSPPacketCodec.peekSequence(f.data, 0, f.length);
+        if (seq >= 0 && window.check(seq)) {
+            try {
+                int length = codec.unprotect(f.data, 0, f.length);
+                if (window.mark(seq)) {
+                    f.length = length;
+                    f.seq = codec.getReceivedSequence();
+                    f.timestamp = codec.getReceivedTimestamp();
+                    f.valid = true;
+                }
+            } catch (GeneralSecurityException e) {
+                // forged, corrupted or a bad rebuild from FEC parity: counted below
+            }
+        }
+        codecs.offer(codec);
+        if (!f.valid)
+            dropped.incrementAndGet();
+    }
+
+    // the backoff of a stage, or a decrypt thread, with nothing to do
+    static void idle(int idle) {
+        if (idle < 100)
+            Thread.onSpinWait();
+        else if (idle < 200)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    // frames dropped so far, replayed or did not authenticate
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("receive pipeline: %d slots in flight at most, %d dropped, receiver out of slots %d times",
+                frames, dropped.get(), receiverWaits);
+    }
+}
@@ -0,0 +1,54 @@
+package srsc.proxy;
+
+/*
+ * What the receive pipelines of all the sessions of a ProxyBox share: the
+ * decrypt threads and the frame slots (FRAME_SIZE buffers), allocated once
+ * for the whole box instead of per session.
+ *
+ * A slot is the decrypt task itself (see ReceivePipeline.Frame). The
+ * receivers of every session hand slots to the decrypt threads through the
+ * tasks ring, and take and give back slots through the free ring; both are
+ * MpmcRings, since many threads are at each end. Each ring can hold every
+ * slot, so handing a frame on allocates nothing and is never refused.
+ *
+ * A decrypt thread with nothing to do backs off as the pipeline stages do.
+ */
+public class ReceiveWorkers {
+
+    final MpmcRing<ReceivePipeline.Frame> tasks;
+    final MpmcRing<ReceivePipeline.Frame> free;
+    final int threads;
+    private final int frames;
+
+    public ReceiveWorkers(int threads, int frames, int frameSize) {
+        this.threads = threads;
+        this.frames = frames;
+        this.tasks = new MpmcRing<>(frames);
+        this.free = new MpmcRing<>(frames);
+        for (int i = 0; i < frames; i++)
+            free.offer(new ReceivePipeline.Frame(frameSize));
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, "decrypt-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            ReceivePipeline.Frame f;
+            for (int idle = 0; (f = tasks.poll()) == null; idle++)
+                ReceivePipeline.idle(idle);
+            try {
+                f.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // the frame is done (and invalid), keep the thread
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("receive workers: %d threads, %d of %d slots free", threads, free.size(), frames);
+    }
+}
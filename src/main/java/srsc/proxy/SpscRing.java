@@ -0,0 +1,64 @@
+package srsc.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bounded lock-free queue between exactly one producer thread and one
+ * consumer thread, over a preallocated array. Each side only writes its own
+ * counter (with a release store) and keeps a cached copy of the other one,
+ * so the shared counters are read again only when the ring looks full or
+ * empty.
+ */
+public class SpscRing<T> {
+
+    private final Object[] items;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // next to poll, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next to offer, written by the producer
+    private long cachedHead; // producer side
+    private long cachedTail; // consumer side
+
+    public SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    /*
+     * Producer only. False if the ring is full.
+     */
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - cachedHead >= items.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= items.length)
+                return false;
+        }
+        items[(int) (t & mask)] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /*
+     * Consumer only. Null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail)
+                return null;
+        }
+        int i = (int) (h & mask);
+        T item = (T) items[i];
+        items[i] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
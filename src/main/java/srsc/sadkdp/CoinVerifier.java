@@ -0,0 +1,131 @@
+package srsc.sadkdp;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import srsc.Utils;
+import srsc.configEntities.*;
+
+/*
+ * The coin checks of the payment step (see SADKDP.checkCoin).
+ *
+ * The integrity proofs are hashes of the issued coin, so they are always
+ * recomputed and compared, which is cheap. A coin whose signatures were
+ * already verified is remembered by its SHA-512 proof, which covers the
+ * whole issued coin (coin, signatures, keys), and is not verified again.
+ * Otherwise the issuer and coin signatures are verified in parallel, the
+ * issuer one on the verifier's own pool (not the caller's, which may be
+ * the crypto pool of the nio server waiting on it).
+ *
+ * This only says a coin is genuine, not that it was not spent before.
+ *
+ * Thread safe.
+ */
+class CoinVerifier {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final PublicKey issuerKey;
+    private final byte[] issuerKeyEncoded;
+    private final int capacity;
+    private final Map<String, Boolean> verified; // SHA-512 proof (hex) of coins with good signatures
+    private final ExecutorService pool;
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<>();
+    private long hits, misses;
+
+    CoinVerifier(PublicKey issuerKey, int capacity) {
+        this.issuerKey = issuerKey;
+        this.issuerKeyEncoded = issuerKey.getEncoded();
+        this.capacity = capacity;
+        this.verified = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > CoinVerifier.this.capacity;
+            }
+        };
+        this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "coin-verifier");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    boolean check(int value, CoinWithIntegrity coinWithIntegrity) throws Exception {
+        IssuedCoin issuedCoin = coinWithIntegrity.getIssuedCoin();
+        SignedCoin signedCoin = issuedCoin.getSignedCoin();
+        Coin coin = signedCoin.getCoin();
+
+        if (coin.getCoinValue() != value)
+            return false;
+
+        byte[] issued = issuedCoin.toByteArray();
+        if (!MessageDigest.isEqual(MessageDigest.getInstance("SHA256", "BC").digest(issued),
+                coinWithIntegrity.getIntegrityProof1()))
+            return false;
+        byte[] proof2 = MessageDigest.getInstance("SHA512", "BC").digest(issued);
+        if (!MessageDigest.isEqual(proof2, coinWithIntegrity.getIntegrityProof2()))
+            return false;
+
+        String id = Utils.toHex(proof2);
+        synchronized (verified) {
+            if (verified.get(id) != null) {
+                hits++;
+                return true;
+            }
+            misses++;
+        }
+
+        if (!Arrays.equals(issuerKeyEncoded, issuedCoin.getIssuePublicKey()))
+            return false;
+
+        Future<Boolean> issuer = pool.submit(
+                () -> verify(issuerKey, signedCoin.toByteArray(), issuedCoin.getIssueSignature()));
+        boolean ok = false;
+        try {
+            PublicKey coinKey = KeyFactory.getInstance("EC")
+                    .generatePublic(new X509EncodedKeySpec(signedCoin.getCoinPublicKey()));
+            ok = verify(coinKey, coin.toByteArray(), signedCoin.getCoinAuthenticity());
+        } finally {
+            try {
+                ok = issuer.get() & ok; // always wait, the task must not outlive the check
+            } catch (ExecutionException e) {
+                ok = false;
+            }
+        }
+
+        if (ok)
+            synchronized (verified) {
+                verified.put(id, Boolean.TRUE);
+            }
+        return ok;
+    }
+
+    private boolean verify(PublicKey key, byte[] data, byte[] signature) throws GeneralSecurityException {
+        Signature s = signatures.get();
+        if (s == null) {
+            s = Signature.getInstance("SHA512withECDSA", "BC");
+            signatures.set(s);
+        }
+        s.initVerify(key);
+        s.update(data);
+        return s.verify(signature);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (verified) {
+            return String.format("coin verifier: %d verified coins, %d hits, %d misses", verified.size(), hits, misses);
+        }
+    }
+}
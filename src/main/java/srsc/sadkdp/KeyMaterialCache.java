@@ -0,0 +1,138 @@
+package srsc.sadkdp;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Per user key material of SADKDP, so a user logging in again does not pay
+ * the provider lookups and key setup once more: the PBE key
+ * (PBEWithMD5AndTripleDES) and an HmacSHA512 Mac already initialised with
+ * the password, which is cloned for every use.
+ *
+ * Entries are keyed by user id, not by the password, and hold a SHA-256 of
+ * the password they were built from: an entry is only used for that same
+ * password, another one (a changed or a wrong password) builds it again.
+ * At most capacity users are kept (least recently used goes first) and an
+ * entry is built again once older than ttl. The salt and counter of the
+ * PBE are fresh on every login, so the derivation they drive (in
+ * Cipher.init) is not cached. The PBE Cipher object itself is kept one per
+ * thread.
+ *
+ * Thread safe.
+ */
+class KeyMaterialCache {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final String PBE = "PBEWithMD5AndTripleDES";
+    private static final String HMAC = "HmacSHA512";
+
+    private static final class Material {
+        final SecretKey pbeKey;
+        final Mac mac; // prototype, never used directly
+        final byte[] passwordHash;
+        final long created = System.currentTimeMillis();
+
+        Material(String password, byte[] passwordHash) throws GeneralSecurityException {
+            this.passwordHash = passwordHash;
+            pbeKey = SecretKeyFactory.getInstance(PBE).generateSecret(new PBEKeySpec(password.toCharArray()));
+            mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(password.getBytes(), HMAC));
+        }
+    }
+
+    private final int capacity;
+    private final long ttl;
+    private final Map<String, Material> entries;
+    private final ThreadLocal<Cipher> pbeCiphers = new ThreadLocal<>();
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+    private long hits, misses;
+
+    KeyMaterialCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttl = ttlMillis;
+        this.entries = new LinkedHashMap<String, Material>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Material> eldest) {
+                return size() > KeyMaterialCache.this.capacity;
+            }
+        };
+    }
+
+    SecretKey pbeKey(String userId, String password) throws GeneralSecurityException {
+        return entry(userId, password).pbeKey;
+    }
+
+    /*
+     * A PBE Cipher for this thread, to be initialised by the caller.
+     */
+    Cipher pbeCipher() throws GeneralSecurityException {
+        Cipher cipher = pbeCiphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(PBE);
+            pbeCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    /*
+     * An HmacSHA512 Mac keyed with password, ready for update().
+     */
+    Mac mac(String userId, String password) throws GeneralSecurityException {
+        Mac prototype = entry(userId, password).mac;
+        try {
+            synchronized (prototype) {
+                return (Mac) prototype.clone();
+            }
+        } catch (CloneNotSupportedException e) { // provider without clone: set one up
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(password.getBytes(), HMAC));
+            return mac;
+        }
+    }
+
+    private Material entry(String userId, String password) throws GeneralSecurityException {
+        byte[] passwordHash = digest().digest(password.getBytes());
+        synchronized (entries) {
+            Material e = entries.get(userId);
+            if (e != null && System.currentTimeMillis() - e.created < ttl
+                    && MessageDigest.isEqual(e.passwordHash, passwordHash)) {
+                hits++;
+                return e;
+            }
+            misses++;
+        }
+        Material e = new Material(password, passwordHash); // outside the lock, two threads may both build it
+        synchronized (entries) {
+            entries.put(userId, e);
+        }
+        return e;
+    }
+
+    private MessageDigest digest() throws GeneralSecurityException {
+        MessageDigest digest = digests.get();
+        if (digest == null) {
+            digest = MessageDigest.getInstance("SHA-256");
+            digests.set(digest);
+        }
+        return digest;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (entries) {
+            return String.format("key material cache: %d entries, %d hits, %d misses", entries.size(), hits, misses);
+        }
+    }
+}
@@ -3,8 +3,11 @@ package srsc.sadkdp;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
 
@@ -23,6 +26,10 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import javax.crypto.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import java.lang.reflect.Type;
 import com.google.gson.reflect.TypeToken;
@@ -32,6 +39,11 @@ import org.bouncycastle.jcajce.provider.symmetric.Grain128.KeyGen;
 import org.bouncycastle.jcajce.provider.symmetric.util.PBE.Util;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import srsc.ControlChannel;
+import srsc.HandshakeDeadline;
+import srsc.JsonCodec;
+import srsc.KeyService;
+import srsc.NonceStore;
 import srsc.Utils;
 import srsc.configEntities.*;
 import srsc.sadkdp.jsonEntities.*;
@@ -51,16 +63,26 @@ public class SADKDP {
     private static final byte MESSAGE_90 = 0b01011010;
     private static final byte MESSAGE_91 = 0b01011011;
 
+    private static final String WALLET = "./src/main/resources/wallet/";
+    private static final String SPENT_COINS = "spent"; // in WALLET, the coins already taken, one per line
+
     Gson gson;
     KeyStore ks, ts;
     String keyStorePassword, trustStorePassword;
-    Set<Integer> nounces;
+    KeyService keyService; // the keys of ks, unlocked once
+    NonceStore nounces; // seen within NonceStore.DEFAULT_WINDOW
     TLSconfig TLSconf;
+    SSLContext clientContext; // built once, getTicket may run for several sessions at a time
+    boolean binaryFraming = true; // how getTicket frames its messages, see ControlChannel
+    SpentCoinRegistry spentCoins; // null accepts a coin any number of times, see setSpentCoinLog
+    CoinVerifier coinVerifier; // signatures of the coins already paid with, see checkCoin
+    private final Set<String> reservedCoins = new HashSet<>(); // client side, see takeCoin
+    KeyMaterialCache keys = new KeyMaterialCache(KeyMaterialCache.DEFAULT_CAPACITY, KeyMaterialCache.DEFAULT_TTL);
 
     public SADKDP(String pathToKeyStore, String keyStorePassword, String pathToTrustStore, String trustStorePassword,
             String tlsConf) throws Exception {
         Security.addProvider(new BouncyCastleProvider());
-        this.gson = new Gson();
+        this.gson = JsonCodec.GSON;
         String TLSconfigJSON = new String(Files.readAllBytes(Paths.get(tlsConf)));
         this.TLSconf = gson.fromJson(TLSconfigJSON, TLSconfig.class);
         this.ks = KeyStore.getInstance("pkcs12");
@@ -69,10 +91,11 @@ public class SADKDP {
         ts.load(new FileInputStream(pathToTrustStore), trustStorePassword.toCharArray());
         this.keyStorePassword = keyStorePassword;
         this.trustStorePassword = trustStorePassword;
-        this.nounces = new HashSet<>();
+        this.keyService = new KeyService(ks, keyStorePassword);
+        this.nounces = new NonceStore();
     }
 
-    private String encodeMessage1(String UserID, String ProxyBoxId) {
+    private byte[] encodeMessage1(String UserID, String ProxyBoxId) {
         Hello content = new Hello(UserID, ProxyBoxId);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
@@ -83,12 +106,10 @@ public class SADKDP {
 
         System.out.println("Msg1 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private Hello decodeMessage1(String dataString) throws Exception {
-
-        byte[] data = Utils.hexStringToByteArray(dataString);
+    private Hello decodeMessage1(byte[] data) throws Exception {
         System.out.println("Msg1 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -107,7 +128,7 @@ public class SADKDP {
         return returnObj;
     }
 
-    private String encodeMessage2(int N1, byte[] Salt, int Counter) {
+    private byte[] encodeMessage2(int N1, byte[] Salt, int Counter) {
         AuthenticationRequest content = new AuthenticationRequest(N1, Salt, Counter);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
@@ -118,11 +139,10 @@ public class SADKDP {
 
         System.out.println("Msg2 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private AuthenticationRequest decodeMessage2(String dataString) throws Exception {
-        byte[] data = Utils.hexStringToByteArray(dataString);
+    private AuthenticationRequest decodeMessage2(byte[] data) throws Exception {
         System.out.println("Msg2 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -141,30 +161,25 @@ public class SADKDP {
         return returnObj;
     }
 
-    private String encodeMessage3(String password, byte[] salt, int counter, int n1_ /* n1+1 */, int n2, String movieId)
-            throws Exception {
+    private byte[] encodeMessage3(String userId, String password, byte[] salt, int counter, int n1_ /* n1+1 */,
+            int n2, String movieId) throws Exception {
         Authentication content = new Authentication(n1_, n2, movieId);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
         // int payloadSize = payload.length;
 
         // PBE
-        PBEKeySpec pbeKeySpec = new PBEKeySpec(password.toCharArray());
-        SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBEWithMD5AndTripleDES");
-
-        SecretKey secretKey = secretKeyFactory.generateSecret(pbeKeySpec);
+        SecretKey secretKey = keys.pbeKey(userId, password);
         PBEParameterSpec pbeParameterSpec = new PBEParameterSpec(salt, counter);
-        Cipher cipher = Cipher.getInstance("PBEWithMD5AndTripleDES");
+        Cipher cipher = keys.pbeCipher();
 
         cipher.init(Cipher.ENCRYPT_MODE, secretKey, pbeParameterSpec);
         byte[] encryptedPayload = cipher.doFinal(payload);
         int encryptedPayloadSize = encryptedPayload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
+        Mac hMac = keys.mac(userId, password);
         int intCheckSize = hMac.getMacLength();
-        hMac.init(hMacKey);
         hMac.update(Utils.toByteArray(n1_));
         byte[] integrityCheck = hMac.doFinal();
 
@@ -173,12 +188,11 @@ public class SADKDP {
 
         System.out.println("Msg3 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private Authentication decodeMessage3(String password, byte[] salt, int counter, String dataString,
+    private Authentication decodeMessage3(String userId, String password, byte[] salt, int counter, byte[] data,
             int myLastNounce) throws Exception {
-        byte[] data = Utils.hexStringToByteArray(dataString);
         System.out.println("Msg3 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -194,21 +208,15 @@ public class SADKDP {
         if (version != VERSION || messageType != MESSAGE_3)
             throw new Exception();
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keys.mac(userId, password);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
         }
 
-        PBEKeySpec pbeKeySpec = new PBEKeySpec(password.toCharArray());
-        SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBEWithMD5AndTripleDES");
-        SecretKey secretKey = secretKeyFactory.generateSecret(pbeKeySpec);
-
+        SecretKey secretKey = keys.pbeKey(userId, password);
         PBEParameterSpec pbeParameterSpec = new PBEParameterSpec(salt, counter);
-
-        Cipher cipher = Cipher.getInstance("PBEWithMD5AndTripleDES");
+        Cipher cipher = keys.pbeCipher();
         cipher.init(Cipher.DECRYPT_MODE, secretKey, pbeParameterSpec);
         byte[] output = cipher.doFinal(encryptedPayload);
 
@@ -218,13 +226,12 @@ public class SADKDP {
         return returnObj;
     }
 
-    private String encodeMessage4(String password, int price, int n2_, int n3) throws Exception {
+    private byte[] encodeMessage4(String userId, String password, int price, int n2_, int n3) throws Exception {
         PaymentRequest content = new PaymentRequest(price, n2_, n3);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
 
-        Signature signature = Signature.getInstance("SHA512withECDSA", "BC");
-        signature.initSign((PrivateKey) ks.getKey("signalingserver", keyStorePassword.toCharArray()));
+        Signature signature = keyService.signer("signalingserver");
         signature.update(payload);
         byte[] sigBytes = signature.sign();
 
@@ -234,10 +241,8 @@ public class SADKDP {
         int sigEnvPayloadSize = sigEnvPayload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
+        Mac hMac = keys.mac(userId, password);
         int intCheckSize = hMac.getMacLength();
-        hMac.init(hMacKey);
         hMac.update(Utils.toByteArray(n2_));
         byte[] integrityCheck = hMac.doFinal();
 
@@ -246,11 +251,11 @@ public class SADKDP {
 
         System.out.println("Msg4 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private PaymentRequest decodeMessage4(String password, String dataString, int myLastNounce) throws Exception {
-        byte[] data = Utils.hexStringToByteArray(dataString);
+    private PaymentRequest decodeMessage4(String userId, String password, byte[] data, int myLastNounce)
+            throws Exception {
         System.out.println("Msg4 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -266,17 +271,14 @@ public class SADKDP {
         if (version != VERSION || messageType != MESSAGE_4)
             throw new Exception();
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keys.mac(userId, password);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
         }
 
         SignatureEnvelope sigEnv = gson.fromJson(Utils.toString(payload), SignatureEnvelope.class);
-        Signature signature = Signature.getInstance("SHA512withECDSA", "BC");
-        signature.initVerify(ks.getCertificate("signalingserver").getPublicKey());
+        Signature signature = keyService.verifier("signalingserver");
         signature.update(sigEnv.getPayload());
         if (!signature.verify(sigEnv.getSigBytes())) {
             throw new Exception();
@@ -288,13 +290,13 @@ public class SADKDP {
         return returnObj;
     }
 
-    private String encodeMessage5(String password, int n3_, int n4, CoinWithIntegrity paymentCoin) throws Exception {
+    private byte[] encodeMessage5(String userId, String password, int n3_, int n4, CoinWithIntegrity paymentCoin)
+            throws Exception {
         Payment content = new Payment(n3_, n4, paymentCoin);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
 
-        Signature signature = Signature.getInstance("SHA512withECDSA", "BC");
-        signature.initSign((PrivateKey) ks.getKey("proxybox", keyStorePassword.toCharArray()));
+        Signature signature = keyService.signer("proxybox");
         signature.update(payload);
         byte[] sigBytes = signature.sign();
 
@@ -304,10 +306,8 @@ public class SADKDP {
         int sigEnvPayloadSize = sigEnvPayload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
+        Mac hMac = keys.mac(userId, password);
         int intCheckSize = hMac.getMacLength();
-        hMac.init(hMacKey);
         hMac.update(Utils.toByteArray(n3_));
         byte[] integrityCheck = hMac.doFinal();
 
@@ -316,11 +316,10 @@ public class SADKDP {
 
         System.out.println("Msg5 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private Payment decodeMessage5(String password, String dataString, int myLastNounce) throws Exception {
-        byte[] data = Utils.hexStringToByteArray(dataString);
+    private Payment decodeMessage5(String userId, String password, byte[] data, int myLastNounce) throws Exception {
         System.out.println("Msg5 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -336,17 +335,14 @@ public class SADKDP {
         if (version != VERSION || messageType != MESSAGE_5)
             throw new Exception();
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keys.mac(userId, password);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
         }
 
         SignatureEnvelope sigEnv = gson.fromJson(Utils.toString(payload), SignatureEnvelope.class);
-        Signature signature = Signature.getInstance("SHA512withECDSA", "BC");
-        signature.initVerify(ks.getCertificate("proxybox").getPublicKey());
+        Signature signature = keyService.verifier("proxybox");
         signature.update(sigEnv.getPayload());
         if (!signature.verify(sigEnv.getSigBytes())) {
             throw new Exception();
@@ -358,20 +354,21 @@ public class SADKDP {
         return returnObj;
     }
 
-    private String encodeMessage6(String password, String ip, String port, String movieId, Ciphersuite ciphersuitConf,
-            byte[] sessionKey, byte[] sessionIV, byte[] macKey, int n4_, int nc1) throws Exception {
+    private byte[] encodeMessage6(String userId, String password, String ip, String port, String movieId,
+            Ciphersuite ciphersuitConf, byte[] sessionKey, byte[] sessionIV, byte[] macKey, int n4_, int nc1)
+            throws Exception {
+        long issued = System.currentTimeMillis(); // signed with the ticket, bounds when it can be redeemed
         TicketCredentials content1 = new TicketCredentials(ip, port, movieId, ciphersuitConf, sessionKey, sessionIV,
                 macKey, n4_);
+        content1.setIssued(issued);
         String message1 = gson.toJson(content1);
         byte[] payload1 = Utils.toByteArray(message1);
 
-        Cipher cipher = Cipher.getInstance("ECIES", "BC");
-        cipher.init(Cipher.ENCRYPT_MODE, ks.getCertificate("proxybox").getPublicKey());
+        Cipher cipher = keyService.ecies(Cipher.ENCRYPT_MODE, "proxybox");
         byte[] encryptedPayload1 = cipher.doFinal(payload1);
         int encryptedPayloadSize1 = encryptedPayload1.length;
 
-        Signature signature1 = Signature.getInstance("SHA512withECDSA", "BC");
-        signature1.initSign((PrivateKey) ks.getKey("signalingserver", keyStorePassword.toCharArray()));
+        Signature signature1 = keyService.signer("signalingserver");
         // signature.initSign(((PrivateKeyEntry) ks.getEntry("signalingserver", new
         // PasswordProtection(keyStorePassword.toCharArray()))).getPrivateKey());
         signature1.update(encryptedPayload1);
@@ -379,16 +376,15 @@ public class SADKDP {
 
         TicketCredentials content2 = new TicketCredentials(ip, port, movieId, ciphersuitConf, sessionKey, sessionIV,
                 macKey, nc1);
+        content2.setIssued(issued);
         String message2 = gson.toJson(content2);
         byte[] payload2 = Utils.toByteArray(message2);
 
-        // cipher=Cipher.getInstance("ECIES", "BC");
-        cipher.init(Cipher.ENCRYPT_MODE, ks.getCertificate("streamingserver").getPublicKey());
+        cipher = keyService.ecies(Cipher.ENCRYPT_MODE, "streamingserver");
         byte[] encryptedPayload2 = cipher.doFinal(payload2);
         int encryptedPayloadSize2 = encryptedPayload2.length;
 
-        Signature signature2 = Signature.getInstance("SHA512withECDSA", "BC");
-        signature2.initSign((PrivateKey) ks.getKey("signalingserver", keyStorePassword.toCharArray()));
+        Signature signature2 = keyService.signer("signalingserver");
         // signature.initSign(((PrivateKeyEntry) ks.getEntry("signalingserver", new
         // PasswordProtection(keyStorePassword.toCharArray()))).getPrivateKey());
         signature2.update(encryptedPayload2);
@@ -401,10 +397,8 @@ public class SADKDP {
         int payloadSize = payload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
+        Mac hMac = keys.mac(userId, password);
         int intCheckSize = hMac.getMacLength();
-        hMac.init(hMacKey);
         hMac.update(Utils.toByteArray(n4_));
         byte[] integrityCheck = hMac.doFinal();
 
@@ -413,12 +407,11 @@ public class SADKDP {
 
         System.out.println("Msg6 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private TicketCredentialsReturn decodeMessage6(String password, String dataString, int myLastNounce)
+    private TicketCredentialsReturn decodeMessage6(String userId, String password, byte[] data, int myLastNounce)
             throws Exception {
-        byte[] data = Utils.hexStringToByteArray(dataString);
         System.out.println("Msg6 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -434,9 +427,7 @@ public class SADKDP {
         if (version != VERSION || messageType != MESSAGE_6)
             throw new Exception();
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keys.mac(userId, password);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
@@ -447,20 +438,17 @@ public class SADKDP {
         byte[] tpb = tcm.getTicketForProxyBox();
         byte[] tss = tcm.getTicketForStreamingServer();
 
-        Signature signature1 = Signature.getInstance("SHA512withECDSA", "BC");
-        signature1.initVerify(ks.getCertificate("signalingserver").getPublicKey());
+        Signature signature1 = keyService.verifier("signalingserver");
         signature1.update(tpb);
         if (!signature1.verify(tcm.getSignatureProxyBox()))
             throw new Exception();
 
-        Signature signature2 = Signature.getInstance("SHA512withECDSA", "BC");
-        signature2.initVerify(ks.getCertificate("signalingserver").getPublicKey());
+        Signature signature2 = keyService.verifier("signalingserver");
         signature2.update(tss);
         if (!signature2.verify(tcm.getSignatureStreamingServer()))
             throw new Exception();
 
-        Cipher cipher = Cipher.getInstance("ECIES", "BC");
-        cipher.init(Cipher.DECRYPT_MODE, ks.getKey("proxybox", keyStorePassword.toCharArray()));
+        Cipher cipher = keyService.ecies(Cipher.DECRYPT_MODE, "proxybox");
         byte[] output = cipher.doFinal(tcm.getTicketForProxyBox());
         String messageTPB = Utils.toString(output);
         TicketCredentials tpbObj = gson.fromJson(messageTPB, TicketCredentials.class);
@@ -470,16 +458,14 @@ public class SADKDP {
                 tpbObj.getN4_(), tcm.getTicketForStreamingServer(), tcm.getSignatureStreamingServer());
     }
 
-    private String encodeError(String password, byte messageType, String errorCode) throws Exception {
+    private byte[] encodeError(String userId, String password, byte messageType, String errorCode) throws Exception {
         ErrorAlert errorAlert = new ErrorAlert(messageType, errorCode);
         String message = gson.toJson(errorAlert);
         byte[] payload = Utils.toByteArray(message);
         int payloadSize = payload.length;
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
+        Mac hMac = keys.mac(userId, password);
         int intCheckSize = hMac.getMacLength();
-        hMac.init(hMacKey);
         hMac.update(Utils.toByteArray(message));
         byte[] integrityCheck = hMac.doFinal();
 
@@ -488,12 +474,10 @@ public class SADKDP {
 
         System.out.println("Error message sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private void decodeError(String password, String dataString) throws Exception {
-
-        byte[] data = Utils.hexStringToByteArray(dataString);
+    private void decodeError(String userId, String password, byte[] data) throws Exception {
         System.out.println("Msg Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -509,10 +493,8 @@ public class SADKDP {
         byte[] integrityCheck = new byte[data.length - HEADERSIZE - payloadSize];
         dataBuff.get(integrityCheck);
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(password.getBytes(), "HmacSHA512");
-        hMac.init(hMacKey);
-        hMac.update(Utils.toByteArray(dataString));
+        Mac hMac = keys.mac(userId, password);
+        hMac.update(payload);
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
         }
@@ -521,20 +503,27 @@ public class SADKDP {
 
     public void startServer(String signalingAddress, String streamingAddress, String pathToUserProxiesJSON,
             String pathToCipherMoviesJSON) throws Exception {
+        startServer(signalingAddress, streamingAddress, pathToUserProxiesJSON, pathToCipherMoviesJSON, 1, 0);
+    }
 
-        Map<String, UserProxy> users = getUsers(pathToUserProxiesJSON);
-        Map<String, CipherMovie> movies = getMovies(pathToCipherMoviesJSON);
+    /*
+     * Each accepted client runs the handshake on a pool of threads threads,
+     * at most threads clients at a time (the others wait in the listen
+     * backlog). A client that sends nothing for timeout ms is dropped, 0 for
+     * no timeout.
+     */
+    public void startServer(String signalingAddress, String streamingAddress, String pathToUserProxiesJSON,
+            String pathToCipherMoviesJSON, int threads, int timeout) throws Exception {
 
-        SSLContext sc = SSLContext.getInstance("TLS");
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance("PKIX");
-        kmf.init(ks, keyStorePassword.toCharArray());
-        tmf.init(ts);
-        sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        // read only from here on, shared by the handler threads
+        Map<String, UserProxy> users = Collections.unmodifiableMap(getUsers(pathToUserProxiesJSON));
+        Map<String, CipherMovie> movies = Collections.unmodifiableMap(getMovies(pathToCipherMoviesJSON));
+
+        SSLContext sc = createContext();
 
         SSLServerSocketFactory ssf = sc.getServerSocketFactory();
         SSLServerSocket serverSocket = (SSLServerSocket) ssf
-                .createServerSocket(Integer.parseInt(signalingAddress.split(":")[1]));
+                .createServerSocket(Integer.parseInt(signalingAddress.split(":")[1]), Math.max(50, 4 * threads));
 
         switch (TLSconf.getAuthentication()) {
             case "MUTUAL":
@@ -556,93 +545,206 @@ public class SADKDP {
         // ServerSocket serverSocket = new
         // ServerSocket(Integer.parseInt(signalingAddress.split(":")[1]));
 
+        ExecutorService handlers = Executors.newFixedThreadPool(threads);
+        Semaphore handshakes = new Semaphore(threads);
         while (true) {
-            SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-            // Socket clientSocket = serverSocket.accept();
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            String message;
-            int myLastNounce;
-            int counter = 1;
-            String password = "";
-
+            handshakes.acquire();
+            SSLSocket clientSocket;
             try {
-                message = in.readLine();
-                Hello hello = decodeMessage1(message);
-                if (!users.containsKey(hello.getUserId())
-                        || !users.get(hello.getUserId()).getProxyId().equals(hello.getProxyBoxId())) {
-                    throw new Exception();
+                clientSocket = (SSLSocket) serverSocket.accept();
+                clientSocket.setSoTimeout(timeout); // each read, serveClient also bounds the whole purchase
+            } catch (IOException e) {
+                handshakes.release();
+                e.printStackTrace();
+                continue;
+            }
+            handlers.execute(() -> {
+                try {
+                    serveClient(clientSocket, streamingAddress, users, movies, timeout);
+                } catch (Exception e) {
+                    e.printStackTrace(); // the client went away, or timed out, before the error reply
+                } finally {
+                    handshakes.release();
                 }
+            });
+        }
+        // serverSocket.close();
 
-                myLastNounce = newNounce();
-                byte[] Salt = new byte[8];
-                new SecureRandom().nextBytes(Salt);
-                String authenticationrequest = encodeMessage2(myLastNounce, Salt, counter);
-                out.write(authenticationrequest);
-                out.newLine();
-                out.flush();
-
-                message = in.readLine();
-                password = users.get(hello.getUserId()).getPassword();
-                Authentication authentication = decodeMessage3(password, Salt, counter++, message, myLastNounce);
-                if (authentication.getN1_() != myLastNounce + 1 || !movies.containsKey(authentication.getMovieId()))
-                    throw new Exception();
-                addSeenNounce(authentication.getN1_());
-                CipherMovie movie = movies.get(authentication.getMovieId());
-
-                myLastNounce = newNounce();
-                String paymentrequest = encodeMessage4(password, movie.getPpvprice(), authentication.getN2() + 1,
-                        myLastNounce);
-                out.write(paymentrequest);
-                out.newLine();
-                out.flush();
-
-                message = in.readLine();
-                Payment payment = decodeMessage5(password, message, myLastNounce);
-                if (payment.getN3_() != myLastNounce + 1 || !checkCoin(movie.getPpvprice(), payment.getPaymentCoin()))
-                    throw new Exception();
-                addSeenNounce(payment.getN3_());
-
-                KeyGenerator kg = KeyGenerator.getInstance("AES");
-                kg.init(256);
-                SecretKey sessionKey = kg.generateKey();
-                SecretKey macKey = kg.generateKey();
-
-                byte[] iv = new byte[16];
-                new SecureRandom().nextBytes(iv);
-
-                String ticketcredentials = encodeMessage6(password, streamingAddress.split(":")[0],
-                        streamingAddress.split(":")[1], movie.getMovie(),
-                        movie.getCiphersuite(), sessionKey.getEncoded(), iv, macKey.getEncoded(), payment.getN4() + 1,
-                        newNounce());
-                out.write(ticketcredentials);
-                out.newLine();
-                out.flush();
+    }
+
+    /*
+     * One purchase over clientSocket, closed when done or once timeout ms
+     * (0 for none) have passed since it started, TLS handshake included.
+     */
+    private void serveClient(SSLSocket clientSocket, String streamingAddress, Map<String, UserProxy> users,
+            Map<String, CipherMovie> movies, int timeout) throws Exception {
+        try (HandshakeDeadline deadline = HandshakeDeadline.start(clientSocket, timeout)) {
+            ControlChannel control = new ControlChannel(clientSocket, VERSION);
+            ServerHandshake handshake = new ServerHandshake(streamingAddress, users, movies);
+
+            try {
+                while (!handshake.isDone()) {
+                    byte[] reply = handshake.next(control.read());
+                    control.write(reply);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
-                String error = encodeError(password, MESSAGE_91, e.getMessage());
-                out.write(error);
-                out.newLine();
-                out.flush();
+                if (deadline.expired())
+                    throw new Exception("Signaling client " + clientSocket.getRemoteSocketAddress() + " timed out");
+                byte[] error = handshake.error(e);
+                control.write(error);
             }
-            out.close();
-            in.close();
-
+        } finally {
             clientSocket.close();
         }
-        // serverSocket.close();
+    }
+
+    /*
+     * Server side of one purchase: each message received moves it one step
+     * (Hello, Authentication, Payment) and gives the reply to send back, so
+     * the same handshake runs over a blocking SSLSocket or over
+     * SADKDPNioServer. One message at a time.
+     */
+    class ServerHandshake {
+        private final String streamingAddress;
+        private final Map<String, UserProxy> users;
+        private final Map<String, CipherMovie> movies;
+
+        private int step;
+        private int myLastNounce;
+        private int counter = 1;
+        private String userId = "", password = "";
+        private byte[] salt;
+        private Hello hello;
+        private CipherMovie movie;
+
+        ServerHandshake(String streamingAddress, Map<String, UserProxy> users, Map<String, CipherMovie> movies) {
+            this.streamingAddress = streamingAddress;
+            this.users = users;
+            this.movies = movies;
+        }
 
+        byte[] next(byte[] message) throws Exception {
+            switch (step++) {
+                case 0:
+                    hello = decodeMessage1(message);
+                    if (!users.containsKey(hello.getUserId())
+                            || !users.get(hello.getUserId()).getProxyId().equals(hello.getProxyBoxId())) {
+                        throw new Exception();
+                    }
+
+                    myLastNounce = newNounce();
+                    salt = new byte[8];
+                    NonceStore.random().nextBytes(salt);
+                    return encodeMessage2(myLastNounce, salt, counter);
+
+                case 1:
+                    userId = hello.getUserId();
+                    password = users.get(userId).getPassword();
+                    Authentication authentication = decodeMessage3(userId, password, salt, counter++, message,
+                            myLastNounce);
+                    if (authentication.getN1_() != myLastNounce + 1 || !movies.containsKey(authentication.getMovieId()))
+                        throw new Exception();
+                    addSeenNounce(authentication.getN1_());
+                    movie = movies.get(authentication.getMovieId());
+
+                    myLastNounce = newNounce();
+                    return encodeMessage4(userId, password, movie.getPpvprice(), authentication.getN2() + 1,
+                            myLastNounce);
+
+                case 2:
+                    Payment payment = decodeMessage5(userId, password, message, myLastNounce);
+                    if (payment.getN3_() != myLastNounce + 1)
+                        throw new Exception();
+                    addSeenNounce(payment.getN3_());
+                    byte[] coinId = spentCoins != null ? SpentCoinRegistry.id(payment.getPaymentCoin()) : null;
+                    if (coinId != null && spentCoins.isSpent(coinId)) // before paying for its signatures
+                        throw new Exception("Coin already spent");
+                    if (!checkCoin(movie.getPpvprice(), payment.getPaymentCoin()))
+                        throw new Exception();
+
+                    KeyGenerator kg = KeyGenerator.getInstance("AES");
+                    kg.init(256);
+                    SecretKey sessionKey = kg.generateKey();
+                    SecretKey macKey = kg.generateKey();
+
+                    byte[] iv = new byte[16];
+                    NonceStore.random().nextBytes(iv);
+
+                    byte[] ticket = encodeMessage6(userId, password, streamingAddress.split(":")[0],
+                            streamingAddress.split(":")[1], movie.getMovie(),
+                            movie.getCiphersuite(), sessionKey.getEncoded(), iv, macKey.getEncoded(), payment.getN4() + 1,
+                            newNounce());
+                    // last, right before the reply: no coin is taken for a ticket that was not built
+                    if (coinId != null && !spentCoins.spend(coinId)) // spent by another client meanwhile
+                        throw new Exception("Coin already spent");
+                    return ticket;
+
+                default:
+                    throw new Exception();
+            }
+        }
+
+        // the ticket credentials were sent
+        boolean isDone() {
+            return step == 3;
+        }
+
+        byte[] error(Exception e) throws Exception {
+            step = 3;
+            return encodeError(userId, password, MESSAGE_91, e.getMessage());
+        }
     }
 
-    public TicketCredentialsReturn getTicket(String address, String username, String password, String proxyId,
-            String movieId) throws Exception {
+    /*
+     * Same as startServer, over non-blocking channels: one selector thread
+     * holds every connection and the handshake steps run on threads crypto
+     * threads.
+     */
+    public void startNioServer(String signalingAddress, String streamingAddress, String pathToUserProxiesJSON,
+            String pathToCipherMoviesJSON, int threads, int timeout) throws Exception {
+        Map<String, UserProxy> users = Collections.unmodifiableMap(getUsers(pathToUserProxiesJSON));
+        Map<String, CipherMovie> movies = Collections.unmodifiableMap(getMovies(pathToCipherMoviesJSON));
+
+        new SADKDPNioServer(this, VERSION, createContext(), Integer.parseInt(signalingAddress.split(":")[1]), threads, timeout,
+                () -> new ServerHandshake(streamingAddress, users, movies)).run();
+    }
 
+    SSLEngine createServerEngine(SSLContext sc) {
+        SSLEngine engine = sc.createSSLEngine();
+        switch (TLSconf.getAuthentication()) {
+            case "MUTUAL":
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                break;
+            case "SSERVER":
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(false);
+                break;
+            case "PROXY":
+                engine.setUseClientMode(true);
+                break;
+        }
+
+        engine.setEnabledProtocols(new String[] { TLSconf.getVersion() });
+        engine.setEnabledCipherSuites(TLSconf.getCiphersuites());
+        return engine;
+    }
+
+    private SSLContext createContext() throws Exception {
         SSLContext sc = SSLContext.getInstance("TLS");
         KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
         TrustManagerFactory tmf = TrustManagerFactory.getInstance("PKIX");
         kmf.init(ks, keyStorePassword.toCharArray());
         tmf.init(ts);
         sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return sc;
+    }
+
+    public TicketCredentialsReturn getTicket(String address, String username, String password, String proxyId,
+            String movieId) throws Exception {
+
+        SSLContext sc = getClientContext();
 
         String[] addressSplit = address.split(":");
         SSLSocketFactory factory = (SSLSocketFactory) sc.getSocketFactory();
@@ -667,131 +769,134 @@ public class SADKDP {
         clientSocket.setEnabledCipherSuites(TLSconf.getCiphersuites());
 
         clientSocket.startHandshake();
-        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        String message;
+        ControlChannel control = new ControlChannel(clientSocket, VERSION, binaryFraming);
+        byte[] message;
         int myLastNounce;
+        String coin = null;
+        boolean paid = false;
 
         try {
-            String hello = encodeMessage1(username, proxyId);
-            out.write(hello);
-            out.newLine();
-            out.flush();
+            byte[] hello = encodeMessage1(username, proxyId);
+            control.write(hello);
 
-            message = in.readLine();
+            message = control.read();
             AuthenticationRequest authenticationRequest = decodeMessage2(message);
 
             myLastNounce = newNounce();
-            String authentication = encodeMessage3(password, authenticationRequest.getSalt(),
+            byte[] authentication = encodeMessage3(username, password, authenticationRequest.getSalt(),
                     authenticationRequest.getCounter(), authenticationRequest.getN1() + 1, myLastNounce, movieId);
-            out.write(authentication);
-            out.newLine();
-            out.flush();
+            control.write(authentication);
 
-            message = in.readLine();
-            PaymentRequest paymentRequest = decodeMessage4(password, message, myLastNounce);
+            message = control.read();
+            PaymentRequest paymentRequest = decodeMessage4(username, password, message, myLastNounce);
             if (paymentRequest.getN2_() != myLastNounce + 1)
                 throw new Exception();
             addSeenNounce(paymentRequest.getN2_());
 
             myLastNounce = newNounce();
-            String payment = encodeMessage5(password, paymentRequest.getN3() + 1, myLastNounce,
-                    loadCoin(paymentRequest.getPrice()));
-            out.write(payment);
-            out.newLine();
-            out.flush();
-
-            message = in.readLine();
-            TicketCredentialsReturn ticketCredentials = decodeMessage6(password, message, myLastNounce);
+            coin = takeCoin(paymentRequest.getPrice());
+            byte[] payment = encodeMessage5(username, password, paymentRequest.getN3() + 1, myLastNounce,
+                    loadCoin(coin));
+            paid = true;
+            control.write(payment);
+
+            message = control.read();
+            TicketCredentialsReturn ticketCredentials = decodeMessage6(username, password, message, myLastNounce);
             if (ticketCredentials.getN4_() != myLastNounce + 1)
                 throw new Exception();
             addSeenNounce(ticketCredentials.getN4_());
+            spendCoin(coin);
 
-            out.close();
-            in.close();
-
-            clientSocket.close();
+            control.close();
 
             return ticketCredentials;
         } catch (Exception e) {
-            String error = encodeError(password, MESSAGE_90, e.getMessage());
-            out.write(error);
-            out.newLine();
-            out.flush();
+            if (coin != null && !paid)
+                releaseCoin(coin);
+            byte[] error = encodeError(username, password, MESSAGE_90, e.getMessage());
+            control.write(error);
 
-            out.close();
-            in.close();
-
-            clientSocket.close();
+            control.close();
 
             throw e;
         }
 
     }
 
-    private CoinWithIntegrity loadCoin(int value) throws Exception {
-
-        return gson.fromJson(
-                new String(Files.readAllBytes(Paths.get("./src/main/resources/wallet/Coin" + value + ".json"))),
-                CoinWithIntegrity.class);
-
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
     }
 
-    private boolean checkCoin(int value, CoinWithIntegrity coinWithIntegrity) throws Exception {
-        IssuedCoin issuedCoin = coinWithIntegrity.getIssuedCoin();
-        SignedCoin signedCoin = issuedCoin.getSignedCoin();
-        Coin coin = signedCoin.getCoin();
-
-        MessageDigest hash1 = MessageDigest.getInstance("SHA256", "BC");
-        byte[] hashed1 = hash1.digest(issuedCoin.toByteArray());
-
-        if (!MessageDigest.isEqual(hashed1, coinWithIntegrity.getIntegrityProof1()))
-            return false;
+    /*
+     * Server side: refuse coins recorded in the log at path, and record
+     * every coin paid with there.
+     */
+    public void setSpentCoinLog(String path, int expectedCoins) throws IOException {
+        this.spentCoins = new SpentCoinRegistry(path, expectedCoins);
+    }
 
-        MessageDigest hash2 = MessageDigest.getInstance("SHA512", "BC");
-        byte[] hashed2 = hash2.digest(issuedCoin.toByteArray());
+    private synchronized SSLContext getClientContext() throws Exception {
+        if (clientContext == null)
+            clientContext = createContext();
+        return clientContext;
+    }
 
-        if (!MessageDigest.isEqual(hashed2, coinWithIntegrity.getIntegrityProof2()))
-            return false;
+    /*
+     * Client side: the first coin of the wallet worth value (CoinN.json and
+     * CoinN-*.json) neither in the wallet's spent file nor taken by another
+     * purchase. It is only reserved here, so purchases running at the same
+     * time never take the same one; spendCoin records it once the ticket it
+     * paid for is in, releaseCoin gives it back if it was never sent. A coin
+     * sent without a ticket coming back may or may not have been spent by
+     * the server, it stays reserved until the ProxyBox restarts.
+     */
+    private synchronized String takeCoin(int value) throws Exception {
+        Path wallet = Paths.get(WALLET), spent = wallet.resolve(SPENT_COINS);
+        Set<String> used = Files.exists(spent) ? new HashSet<>(Files.readAllLines(spent)) : new HashSet<>();
+        List<String> coins = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(wallet, "Coin" + value + "{,-*}.json")) {
+            for (Path file : files)
+                coins.add(file.getFileName().toString());
+        }
+        Collections.sort(coins);
+        for (String coin : coins) {
+            if (!used.contains(coin) && reservedCoins.add(coin))
+                return coin;
+        }
+        throw new Exception("No coin of " + value + " left in " + WALLET);
+    }
 
-        if (!Arrays.equals(ks.getCertificate("bancobank").getPublicKey().getEncoded(), issuedCoin.getIssuePublicKey()))
-            return false;
+    private CoinWithIntegrity loadCoin(String coin) throws IOException {
+        return gson.fromJson(new String(Files.readAllBytes(Paths.get(WALLET, coin))), CoinWithIntegrity.class);
+    }
 
-        PublicKey keyI = KeyFactory.getInstance("EC")
-                .generatePublic(new X509EncodedKeySpec(issuedCoin.getIssuePublicKey()));
-        Signature signatureI = Signature.getInstance("SHA512withECDSA", "BC");
-        signatureI.initVerify(keyI);
-        signatureI.update(signedCoin.toByteArray());
-        if (!signatureI.verify(issuedCoin.getIssueSignature()))
-            return false;
+    private synchronized void spendCoin(String coin) throws IOException {
+        Files.write(Paths.get(WALLET, SPENT_COINS), Collections.singletonList(coin), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        reservedCoins.remove(coin);
+    }
 
-        PublicKey keyS = KeyFactory.getInstance("EC")
-                .generatePublic(new X509EncodedKeySpec(signedCoin.getCoinPublicKey()));
-        Signature signatureS = Signature.getInstance("SHA512withECDSA", "BC");
-        signatureS.initVerify((PublicKey) keyS);
-        signatureS.update(coin.toByteArray());
-        if (!signatureS.verify(signedCoin.getCoinAuthenticity()))
-            return false;
+    private synchronized void releaseCoin(String coin) {
+        reservedCoins.remove(coin);
+    }
 
-        if (coin.getCoinValue() != value)
-            return false;
+    private boolean checkCoin(int value, CoinWithIntegrity coinWithIntegrity) throws Exception {
+        return getCoinVerifier().check(value, coinWithIntegrity);
+    }
 
-        return true;
+    // the client side has no bank certificate, built on the first payment
+    private synchronized CoinVerifier getCoinVerifier() throws Exception {
+        if (coinVerifier == null)
+            coinVerifier = new CoinVerifier(keyService.publicKey("bancobank"), CoinVerifier.DEFAULT_CAPACITY);
+        return coinVerifier;
     }
 
     private int newNounce() {
-        int random;
-        do {
-            random = new SecureRandom().nextInt();
-        } while (nounces.contains(random + 1));
-
-        return random;
+        return nounces.next();
     }
 
     private void addSeenNounce(int nounce) throws Exception {
-        if (!nounces.contains(nounce))
-            nounces.add(nounce);
-        else
+        if (!nounces.add(nounce))
             throw new Exception();
     }
 
@@ -801,7 +906,7 @@ public class SADKDP {
         Type type = new TypeToken<Map<String, UserProxy>>() {
         }.getType();
 
-        return new Gson().fromJson(UserProxiesJSON, type);
+        return gson.fromJson(UserProxiesJSON, type);
     }
 
     private Map<String, CipherMovie> getMovies(String pathToCipherMoviesJSON) throws IOException {
@@ -810,7 +915,7 @@ public class SADKDP {
         Type type = new TypeToken<Map<String, CipherMovie>>() {
         }.getType();
 
-        return new Gson().fromJson(CipherMoviesJSON, type);
+        return gson.fromJson(CipherMoviesJSON, type);
     }
 
 }
@@ -0,0 +1,362 @@
+package srsc.sadkdp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import srsc.ControlChannel;
+import srsc.Utils;
+
+/*
+ * SADKDP server over non-blocking SocketChannels: a single selector thread
+ * accepts, reads and writes for every connection and drives each one's
+ * SSLEngine, so idle or slow clients only cost a buffer set.
+ *
+ * The CPU heavy work goes to the crypto pool: the SSLEngine delegated tasks
+ * (TLS handshake) and the SADKDP handshake steps (ServerHandshake.next).
+ * Their results come back to the selector thread through a queue. A
+ * connection has at most one of them running, the protocol is lock-step.
+ *
+ * Messages are framed as with ControlChannel, hex lines or binary frames. A connection that has
+ * not finished its purchase timeout ms after it was accepted is closed.
+ */
+class SADKDPNioServer {
+
+    private static final long SWEEP_MILLIS = 1000;
+
+    private final SADKDP sadkdp;
+    private final byte version;
+    private final SSLContext context;
+    private final int port;
+    private final int timeout;
+    private final Supplier<SADKDP.ServerHandshake> handshakes;
+    private final ExecutorService crypto;
+
+    private final Selector selector;
+    private final Queue<Runnable> completed = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+
+    SADKDPNioServer(SADKDP sadkdp, byte version, SSLContext context, int port, int threads, int timeout,
+            Supplier<SADKDP.ServerHandshake> handshakes) throws IOException {
+        this.sadkdp = sadkdp;
+        this.version = version;
+        this.context = context;
+        this.port = port;
+        this.timeout = timeout;
+        this.handshakes = handshakes;
+        this.crypto = Executors.newFixedThreadPool(threads);
+        this.selector = Selector.open();
+    }
+
+    void run() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            selector.select(SWEEP_MILLIS);
+
+            Runnable r;
+            while ((r = completed.poll()) != null)
+                r.run();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept(server);
+                    continue;
+                }
+                Connection c = (Connection) key.attachment();
+                try {
+                    if (key.isWritable())
+                        c.flush();
+                    if (key.isValid() && key.isReadable())
+                        c.read();
+                } catch (IOException e) {
+                    c.close();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (timeout > 0 && now - lastSweep >= SWEEP_MILLIS) {
+                lastSweep = now;
+                for (Connection c : new ArrayList<>(connections))
+                    if (!c.busy && now - c.acceptedAt > timeout) {
+                        System.err.println("Signaling client " + c.address + " timed out");
+                        c.close();
+                    }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection c = new Connection(channel, sadkdp.createServerEngine(context));
+            c.key = channel.register(selector, SelectionKey.OP_READ, c);
+            connections.add(c);
+        }
+    }
+
+    // runs r on the selector thread
+    private void complete(Runnable r) {
+        completed.add(r);
+        selector.wakeup();
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final SSLEngine engine;
+        final SADKDP.ServerHandshake handshake = handshakes.get();
+        final Object address;
+        SelectionKey key;
+
+        ByteBuffer netIn, appIn, netOut; // netIn and appIn are kept ready for put, netOut for get
+        final long acceptedAt = System.currentTimeMillis();
+        boolean busy; // a delegated task or handshake step is running on the crypto pool
+        boolean closing; // the last reply was queued, close once it is out
+        Boolean binary; // framing, null until the first message
+
+        Connection(SocketChannel channel, SSLEngine engine) throws IOException {
+            this.channel = channel;
+            this.engine = engine;
+            this.address = channel.getRemoteAddress();
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            netOut.flip();
+        }
+
+        void read() throws IOException {
+            int n = channel.read(netIn);
+            if (n < 0) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        // moves the engine along as far as it goes without waiting
+        void process() throws IOException {
+            while (!busy) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        busy = true;
+                        crypto.execute(() -> {
+                            Runnable task;
+                            while ((task = engine.getDelegatedTask()) != null)
+                                task.run();
+                            complete(() -> {
+                                busy = false;
+                                resume();
+                            });
+                        });
+                        flush();
+                        return;
+                    case NEED_WRAP:
+                        wrap(ByteBuffer.allocate(0));
+                        continue;
+                    default:
+                        break;
+                }
+                if (!unwrap())
+                    break;
+            }
+            flush();
+            if (!busy)
+                nextMessage();
+        }
+
+        // false when more bytes are needed from the network
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity())
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    return false;
+                case CLOSED:
+                    close();
+                    return false;
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                            || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                            || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK;
+            }
+        }
+
+        private void wrap(ByteBuffer app) throws SSLException {
+            SSLEngineResult.Status status;
+            do {
+                netOut.compact();
+                status = engine.wrap(app, netOut).getStatus();
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                    netOut = grow(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize());
+                netOut.flip();
+                if (status == SSLEngineResult.Status.CLOSED)
+                    return;
+            } while (app.hasRemaining() || status == SSLEngineResult.Status.BUFFER_OVERFLOW);
+        }
+
+        // a whole message received: hand it to the handshake on the crypto pool
+        private void nextMessage() throws IOException {
+            if (closing || !key.isValid())
+                return;
+            byte[] message = takeMessage();
+            if (message == null)
+                return;
+            busy = true;
+            crypto.execute(() -> {
+                byte[] reply;
+                boolean last;
+                try {
+                    reply = handshake.next(message);
+                    last = handshake.isDone();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    try {
+                        reply = handshake.error(e);
+                    } catch (Exception e2) {
+                        reply = null;
+                    }
+                    last = true;
+                }
+                byte[] toSend = reply;
+                boolean done = last;
+                complete(() -> {
+                    busy = false;
+                    try {
+                        if (toSend != null)
+                            wrap(frame(toSend));
+                        closing = done;
+                        resume();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            });
+        }
+
+        // same framings as ControlChannel, picked by the first byte the client sends
+        private byte[] takeMessage() throws IOException {
+            int available = appIn.position();
+            if (available == 0)
+                return null;
+            if (binary == null)
+                binary = !ControlChannel.isHexDigit(appIn.get(0));
+
+            if (binary) {
+                if (available < ControlChannel.BINARY_HEADER)
+                    return null;
+                int length = appIn.getInt(1);
+                if (appIn.get(0) != version || length < 0 || length > ControlChannel.MAX_MESSAGE)
+                    throw new IOException("Bad frame");
+                if (available < ControlChannel.BINARY_HEADER + length)
+                    return null;
+                byte[] message = new byte[length];
+                appIn.flip();
+                appIn.position(ControlChannel.BINARY_HEADER);
+                appIn.get(message);
+                appIn.compact();
+                return message;
+            }
+
+            for (int i = 0; i < available; i++) {
+                if (appIn.get(i) == '\n') {
+                    byte[] line = new byte[i];
+                    appIn.flip();
+                    appIn.get(line).get(); // and the newline
+                    appIn.compact();
+                    int end = line.length > 0 && line[line.length - 1] == '\r' ? line.length - 1 : line.length;
+                    return Utils.hexStringToByteArray(Utils.toString(Arrays.copyOf(line, end)));
+                }
+            }
+            if (available > 2 * ControlChannel.MAX_MESSAGE)
+                throw new IOException("Line too long");
+            return null;
+        }
+
+        private ByteBuffer frame(byte[] message) {
+            if (binary == null || binary)
+                return ByteBuffer.allocate(ControlChannel.BINARY_HEADER + message.length).put(version)
+                        .putInt(message.length).put(message).flip();
+            return ByteBuffer.wrap(Utils.toByteArray(Utils.toHex(message) + "\n"));
+        }
+
+        private void resume() {
+            if (!key.isValid())
+                return;
+            try {
+                process();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            if (!key.isValid())
+                return;
+            if (netOut.hasRemaining())
+                channel.write(netOut);
+            if (netOut.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (closing && !busy)
+                close();
+        }
+
+        void close() {
+            connections.remove(this);
+            key.cancel();
+            try {
+                engine.closeOutbound();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer b, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, 2 * b.capacity()));
+        b.flip();
+        bigger.put(b);
+        return bigger;
+    }
+}
@@ -0,0 +1,264 @@
+package srsc.sadkdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import srsc.configEntities.CoinWithIntegrity;
+
+/*
+ * The coins already paid with, so a coin is only accepted once, also
+ * across restarts of the signaling server.
+ *
+ * A coin is identified by the SHA-256 of its public key (each coin has its
+ * own key pair). The identifiers are appended to a log file, ID_SIZE bytes
+ * each, and read back on start; a torn last record is dropped. Appends are
+ * group committed: a writer thread writes and forces everything queued
+ * since its last force, and spend() returns once its record is on disk.
+ *
+ * In memory there is a Bloom filter, which answers "definitely unspent"
+ * without looking further, in front of an open addressing table of the
+ * first 8 bytes of every identifier (a false "spent" needs a 64 bit
+ * collision of SHA-256). Lookups share a read lock, spends take the write
+ * lock only for the in memory update.
+ *
+ * Thread safe.
+ */
+class SpentCoinRegistry {
+
+    static final int ID_SIZE = 32;
+    private static final int BLOOM_HASHES = 7;
+    private static final int BLOOM_BITS_PER_COIN = 10; // about 1% false positives
+
+    private final FileChannel log;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] table; // 0 is empty, so an id starting with 8 zero bytes is stored as 1
+    private int size;
+    private long[] bloom;
+    private int bloomCapacity;
+
+    // group commit
+    private final List<byte[]> queued = new ArrayList<>();
+    private long appended, durable;
+    private IOException failure;
+
+    SpentCoinRegistry(String path, int expectedCoins) throws IOException {
+        Path file = Paths.get(path);
+        this.log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.table = new long[tableSize(expectedCoins)];
+        resizeBloom(Math.max(expectedCoins, 1024));
+
+        long records = log.size() / ID_SIZE;
+        ByteBuffer in = ByteBuffer.allocate(ID_SIZE * 1024);
+        log.position(0);
+        for (long read = 0; read < records * ID_SIZE;) {
+            in.clear();
+            in.limit((int) Math.min(in.capacity(), records * ID_SIZE - read));
+            while (in.hasRemaining() && log.read(in) >= 0)
+                ;
+            in.flip();
+            read += in.limit();
+            while (in.remaining() >= ID_SIZE) {
+                long key = key(in.getLong());
+                in.position(in.position() + ID_SIZE - Long.BYTES);
+                if (insert(key))
+                    addToBloom(key);
+            }
+        }
+        log.truncate(records * ID_SIZE);
+        log.position(records * ID_SIZE);
+
+        Thread writer = new Thread(this::writeLoop, "spent-coins-log");
+        writer.setDaemon(true);
+        writer.start();
+        System.out.println("Spent coins: " + size + " in " + file);
+    }
+
+    static byte[] id(CoinWithIntegrity coin) throws Exception {
+        return MessageDigest.getInstance("SHA-256")
+                .digest(coin.getIssuedCoin().getSignedCoin().getCoinPublicKey());
+    }
+
+    boolean isSpent(byte[] id) {
+        long key = key(ByteBuffer.wrap(id).getLong());
+        lock.readLock().lock();
+        try {
+            return mightContain(key) && contains(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Marks the coin spent, false if it already was. Returns once the
+     * record is durable; if the log cannot be written the coin stays
+     * spent in memory and the IOException is thrown.
+     */
+    boolean spend(byte[] id) throws IOException, InterruptedException {
+        long key = key(ByteBuffer.wrap(id).getLong());
+        lock.writeLock().lock();
+        try {
+            if (mightContain(key) && contains(key))
+                return false;
+            insert(key);
+            addToBloom(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        long mine;
+        synchronized (queued) {
+            queued.add(id.clone());
+            mine = ++appended;
+            queued.notifyAll();
+            while (durable < mine && failure == null)
+                queued.wait();
+            if (durable < mine)
+                throw failure;
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        while (true) {
+            long upTo;
+            synchronized (queued) {
+                while (queued.isEmpty()) {
+                    try {
+                        queued.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch.addAll(queued);
+                queued.clear();
+                upTo = appended;
+            }
+            IOException error = null;
+            try {
+                ByteBuffer out = ByteBuffer.allocate(batch.size() * ID_SIZE);
+                for (byte[] id : batch)
+                    out.put(id);
+                out.flip();
+                while (out.hasRemaining())
+                    log.write(out);
+                log.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                error = e;
+            }
+            batch.clear();
+            synchronized (queued) {
+                if (error == null)
+                    durable = upTo;
+                else
+                    failure = error;
+                queued.notifyAll();
+            }
+            if (error != null)
+                return;
+        }
+    }
+
+    // callers hold the lock
+
+    private boolean contains(long key) {
+        int mask = table.length - 1;
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            if (table[i] == key)
+                return true;
+            if (table[i] == 0)
+                return false;
+        }
+    }
+
+    private boolean insert(long key) {
+        if (2 * (size + 1) > table.length)
+            rehash(table.length * 2);
+        int mask = table.length - 1;
+        int i = mix(key) & mask;
+        for (; table[i] != 0; i = (i + 1) & mask)
+            if (table[i] == key)
+                return false;
+        table[i] = key;
+        size++;
+        if (size > bloomCapacity)
+            resizeBloom(bloomCapacity * 2);
+        return true;
+    }
+
+    private void rehash(int length) {
+        long[] old = table;
+        table = new long[length];
+        int mask = length - 1;
+        for (long key : old)
+            if (key != 0) {
+                int i = mix(key) & mask;
+                while (table[i] != 0)
+                    i = (i + 1) & mask;
+                table[i] = key;
+            }
+    }
+
+    private boolean mightContain(long key) {
+        long bits = bloom.length * 64L;
+        int h1 = (int) key, h2 = (int) (key >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void addToBloom(long key) {
+        long bits = bloom.length * 64L;
+        int h1 = (int) key, h2 = (int) (key >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // a Bloom filter cannot grow, build a bigger one from the table
+    private void resizeBloom(int capacity) {
+        bloomCapacity = capacity;
+        bloom = new long[(int) ((long) capacity * BLOOM_BITS_PER_COIN / 64 + 1)];
+        for (long key : table)
+            if (key != 0)
+                addToBloom(key);
+    }
+
+    private static long key(long prefix) {
+        return prefix == 0 ? 1 : prefix;
+    }
+
+    private static int mix(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private static int tableSize(int expected) {
+        int n = 16;
+        while (n < 2 * expected)
+            n <<= 1;
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format("spent coins: %d, bloom %d bits", size, bloom.length * 64L);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
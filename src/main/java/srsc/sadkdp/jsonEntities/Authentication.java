@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class Authentication {
     private String movieId;
     private int n1_, n2;
@@ -37,4 +42,10 @@ public class Authentication {
         this.movieId = movieId;
     }
 
-}
\ No newline at end of file
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Authentication> ADAPTER = AdapterBuilder.of(Authentication::new)
+            .string("movieId", v -> v.movieId, (v, x) -> v.movieId = x)
+            .integer("n1_", v -> v.n1_, (v, x) -> v.n1_ = x)
+            .integer("n2", v -> v.n2, (v, x) -> v.n2 = x)
+            .build();
+}
@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class AuthenticationRequest {
     private int n1, counter;
     private byte[] salt;
@@ -37,4 +42,10 @@ public class AuthenticationRequest {
         this.counter = counter;
     }
 
-}
\ No newline at end of file
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<AuthenticationRequest> ADAPTER = AdapterBuilder.of(AuthenticationRequest::new)
+            .integer("n1", v -> v.n1, (v, x) -> v.n1 = x)
+            .integer("counter", v -> v.counter, (v, x) -> v.counter = x)
+            .bytes("salt", v -> v.salt, (v, x) -> v.salt = x)
+            .build();
+}
@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class ErrorAlert {
     private byte mType;
     private String errorCode;
@@ -28,4 +33,9 @@ public class ErrorAlert {
         this.errorCode = errorCode;
     }
 
-}
\ No newline at end of file
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<ErrorAlert> ADAPTER = AdapterBuilder.of(ErrorAlert::new)
+            .integer("mType", v -> v.mType, (v, x) -> v.mType = (byte) x)
+            .string("errorCode", v -> v.errorCode, (v, x) -> v.errorCode = x)
+            .build();
+}
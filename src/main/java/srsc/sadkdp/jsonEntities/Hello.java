@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class Hello {
     private String userId, proxyBoxId;
 
@@ -26,7 +31,10 @@ public class Hello {
     public void setProxyBoxId(String proxyBoxId) {
         this.proxyBoxId = proxyBoxId;
     }
-   
-}
-
 
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Hello> ADAPTER = AdapterBuilder.of(Hello::new)
+            .string("userId", v -> v.userId, (v, x) -> v.userId = x)
+            .string("proxyBoxId", v -> v.proxyBoxId, (v, x) -> v.proxyBoxId = x)
+            .build();
+}
@@ -1,5 +1,9 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.configEntities.CoinWithIntegrity;
 
 public class Payment {
@@ -38,4 +42,11 @@ public class Payment {
     public void setPaymentCoin(CoinWithIntegrity paymentCoin) {
         this.paymentCoin = paymentCoin;
     }
-}
\ No newline at end of file
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Payment> ADAPTER = AdapterBuilder.of(Payment::new)
+            .object("paymentCoin", CoinWithIntegrity.ADAPTER, v -> v.paymentCoin, (v, x) -> v.paymentCoin = x)
+            .integer("n3_", v -> v.n3_, (v, x) -> v.n3_ = x)
+            .integer("n4", v -> v.n4, (v, x) -> v.n4 = x)
+            .build();
+}
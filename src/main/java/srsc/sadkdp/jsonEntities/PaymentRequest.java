@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class PaymentRequest {
     private int n2_, n3, price;
 
@@ -35,5 +40,11 @@ public class PaymentRequest {
     public void setPrice(int price) {
         this.price = price;
     }
-    
-}
\ No newline at end of file
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<PaymentRequest> ADAPTER = AdapterBuilder.of(PaymentRequest::new)
+            .integer("n2_", v -> v.n2_, (v, x) -> v.n2_ = x)
+            .integer("n3", v -> v.n3, (v, x) -> v.n3 = x)
+            .integer("price", v -> v.price, (v, x) -> v.price = x)
+            .build();
+}
@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class SignatureEnvelope {
 
     private byte[] payload;
@@ -29,5 +34,9 @@ public class SignatureEnvelope {
         this.sigBytes = sigBytes;
     }
 
-
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<SignatureEnvelope> ADAPTER = AdapterBuilder.of(SignatureEnvelope::new)
+            .bytes("payload", v -> v.payload, (v, x) -> v.payload = x)
+            .bytes("sigBytes", v -> v.sigBytes, (v, x) -> v.sigBytes = x)
+            .build();
 }
@@ -1,5 +1,10 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class TicketCredentialsMessage {
     private byte[] ticketForProxyBox;
     private byte[] ticketForStreamingServer;
@@ -46,5 +51,14 @@ public class TicketCredentialsMessage {
     public void setSignatureStreamingServer(byte[] signatureStreamingServer) {
         this.signatureStreamingServer = signatureStreamingServer;
     }
-    
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<TicketCredentialsMessage> ADAPTER = AdapterBuilder.of(TicketCredentialsMessage::new)
+            .bytes("ticketForProxyBox", v -> v.ticketForProxyBox, (v, x) -> v.ticketForProxyBox = x)
+            .bytes("ticketForStreamingServer", v -> v.ticketForStreamingServer,
+                    (v, x) -> v.ticketForStreamingServer = x)
+            .bytes("signatureProxyBox", v -> v.signatureProxyBox, (v, x) -> v.signatureProxyBox = x)
+            .bytes("signatureStreamingServer", v -> v.signatureStreamingServer,
+                    (v, x) -> v.signatureStreamingServer = x)
+            .build();
 }
@@ -1,5 +1,9 @@
 package srsc.sadkdp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.configEntities.Ciphersuite;
 
 public class TicketCredentialsReturn {
@@ -103,7 +107,18 @@ public class TicketCredentialsReturn {
     public void setMacKey(byte[] macKey) {
         this.macKey = macKey;
     }
-    
-    
-    
-}
\ No newline at end of file
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<TicketCredentialsReturn> ADAPTER = AdapterBuilder.of(TicketCredentialsReturn::new)
+            .string("ip", v -> v.ip, (v, x) -> v.ip = x)
+            .string("port", v -> v.port, (v, x) -> v.port = x)
+            .string("movieId", v -> v.movieId, (v, x) -> v.movieId = x)
+            .object("ciphersuiteConf", Ciphersuite.ADAPTER, v -> v.ciphersuiteConf, (v, x) -> v.ciphersuiteConf = x)
+            .integer("n4_", v -> v.n4_, (v, x) -> v.n4_ = x)
+            .bytes("sessionKey", v -> v.sessionKey, (v, x) -> v.sessionKey = x)
+            .bytes("sessionIV", v -> v.sessionIV, (v, x) -> v.sessionIV = x)
+            .bytes("streamTicket", v -> v.streamTicket, (v, x) -> v.streamTicket = x)
+            .bytes("streamSigBytes", v -> v.streamSigBytes, (v, x) -> v.streamSigBytes = x)
+            .bytes("macKey", v -> v.macKey, (v, x) -> v.macKey = x)
+            .build();
+}
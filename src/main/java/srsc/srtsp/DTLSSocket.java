@@ -9,11 +9,12 @@ import java.nio.file.Paths;
 import java.security.cert.CertificateException;
 import javax.net.ssl.*;
 
-import com.google.gson.Gson;
-
+import srsc.JsonCodec;
 import srsc.configEntities.TLSconfig;
 
 import java.security.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
@@ -27,21 +28,40 @@ public class DTLSSocket extends DatagramSocket {
     private static final String PROXY = "PROXY"; // client side
     private static final String SERVER = "SSERVER"; // server side
     private static final String SSL_CONTEXT = "DTLS";
+    // one context per keystore/truststore pair, shared by every session
+    private static final Map<String, SSLContext> contexts = new ConcurrentHashMap<>();
 
     public DTLSSocket(boolean isServer, String keystore, String keystorePassword, String truststore,
             String truststorePassword, String dtlsConf, SocketAddress ourAddress)
             throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException,
             UnrecoverableKeyException, KeyManagementException {
         super(ourAddress); // address for the socket
+        this.engine = createEngine(isServer, keystore, keystorePassword, truststore, truststorePassword, dtlsConf);
+    }
 
-        String DTLSconfigJSON = new String(Files.readAllBytes(Paths.get(dtlsConf)));
-        TLSconfig DTLSconf = new Gson().fromJson(DTLSconfigJSON, TLSconfig.class);
+    // Also used by SRTSPDatagramChannel, which runs the same DTLS setup
+    // over a DatagramChannel
+    static SSLEngine createEngine(boolean isServer, String keystore, String keystorePassword, String truststore,
+            String truststorePassword, String dtlsConf)
+            throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException,
+            UnrecoverableKeyException, KeyManagementException {
 
-        this.engine = createSSLContext(keystore, keystorePassword, truststore, truststorePassword).createSSLEngine();
+        String DTLSconfigJSON = new String(Files.readAllBytes(Paths.get(dtlsConf)));
+        TLSconfig DTLSconf = JsonCodec.GSON.fromJson(DTLSconfigJSON, TLSconfig.class);
+
+        String key = keystore + "|" + truststore;
+        SSLContext context = contexts.get(key);
+        if (context == null) {
+            context = createSSLContext(keystore, keystorePassword, truststore, truststorePassword);
+            SSLContext other = contexts.putIfAbsent(key, context);
+            if (other != null)
+                context = other;
+        }
+        SSLEngine engine = context.createSSLEngine();
         if (isServer) // server endpoint
-            setServerAuth(DTLSconf.getAuthentication());
+            setServerAuth(engine, DTLSconf.getAuthentication());
         else // client endpoint
-            setProxyAuth(DTLSconf.getAuthentication());
+            setProxyAuth(engine, DTLSconf.getAuthentication());
 
         // and for both ... In this way I have a common way to
         // have common enabled ciphersuites for sure ...
@@ -51,12 +71,13 @@ public class DTLSSocket extends DatagramSocket {
 
         engine.setEnabledCipherSuites(DTLSconf.getCiphersuites());
         engine.setEnabledProtocols(new String[] { DTLSconf.getVersion() });
+        return engine;
     }
 
     // Now let's go to maege the SSL context (w/ SSL Context class)
     // See JSSE Docs and class slides
 
-    private SSLContext createSSLContext(String keystore, String keystorePassword, String truststore,
+    private static SSLContext createSSLContext(String keystore, String keystorePassword, String truststore,
             String truststorePassword) throws KeyStoreException, NoSuchAlgorithmException,
             IOException, CertificateException, UnrecoverableKeyException, KeyManagementException {
 
@@ -104,7 +125,7 @@ public class DTLSSocket extends DatagramSocket {
     // see the involved methods in JSSE documentation (SSLEngine class)
 
     // Ok ... If I am the proxy...
-    private void setProxyAuth(String authType) {
+    private static void setProxyAuth(SSLEngine engine, String authType) {
         switch (authType) {
             case MUTUAL: // Nothing to do
 
@@ -123,7 +144,7 @@ public class DTLSSocket extends DatagramSocket {
     }
 
     // If I am the streamserver ...
-    private void setServerAuth(String authType) {
+    private static void setServerAuth(SSLEngine engine, String authType) {
         switch (authType) {
             case MUTUAL:
                 // I streamserver will act as the DTLS server side
@@ -160,7 +181,9 @@ public class DTLSSocket extends DatagramSocket {
         SSLSession session = engine.getSession();
         ByteBuffer inBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
         ByteBuffer outBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
-        super.receive(new DatagramPacket(inBuffer.array(), 0, inBuffer.capacity()));
+        DatagramPacket packet = new DatagramPacket(inBuffer.array(), 0, inBuffer.capacity());
+        super.receive(packet);
+        inBuffer.limit(packet.getLength());
         return engine.unwrap(inBuffer, outBuffer).getHandshakeStatus();
     }
 
@@ -215,41 +238,75 @@ public class DTLSSocket extends DatagramSocket {
 
     // ... Anyway you must manage this according to your previous PA#1 implem.
 
+    // false for the SRTSP protection profile: datagrams go out as they are
+    private boolean dtls = true;
+
+    protected void setDTLS(boolean dtls) {
+        this.dtls = dtls;
+    }
+
     public void send(DatagramPacket packet) throws IOException {
+        if (!dtls) {
+            super.send(packet);
+            return;
+        }
         encrypt(packet);
-        super.send(packet);
+        record.setSocketAddress(packet.getSocketAddress());
+        super.send(record);
     }
 
     public void receive(DatagramPacket packet) throws IOException {
-        while( this.decrypt(packet) == 0) 
+        if (!dtls) {
+            super.receive(packet);
+            return;
+        }
+        int length = packet.getLength();
+        do {
+            packet.setLength(length);
             super.receive(packet);
-        decrypt(packet);
+        } while (decrypt(packet) == 0); // DTLS records without application data
     }
 
     // What of you want to encrypt a DatagramPacket and send over the
     // DTLS Engine (wrap) ... or to receive an encrypted DatagramPacket
     // from a DTLS Engine (unwrap)
+
+    // Buffers are kept per socket and sized once the handshake is done,
+    // the caller's packet is only wrapped again if it has a new array
+    private ByteBuffer appBuffer, netBuffer, view;
+    private final DatagramPacket record = new DatagramPacket(new byte[0], 0);
+
+    private void allocateBuffers() {
+        if (netBuffer == null) {
+            SSLSession session = engine.getSession();
+            appBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
+            netBuffer = ByteBuffer.allocate(session.getPacketBufferSize());
+        }
+    }
+
+    private ByteBuffer view(DatagramPacket packet) {
+        if (view == null || view.array() != packet.getData())
+            view = ByteBuffer.wrap(packet.getData());
+        view.limit(packet.getOffset() + packet.getLength()).position(packet.getOffset());
+        return view;
+    }
+
+    // wraps into netBuffer, sent as record
     private void encrypt(DatagramPacket packet) throws SSLException {
-        byte[] buffer = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), 0, buffer, 0, packet.getLength());
-        ByteBuffer inBuffer = ByteBuffer.wrap(buffer);
-        ByteBuffer outBuffer = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
-        engine.wrap(inBuffer, outBuffer);
-        buffer = new byte[outBuffer.position()];
-        System.arraycopy(outBuffer.array(), 0, buffer, 0, outBuffer.position());
-        packet.setData(buffer, 0, buffer.length);
+        allocateBuffers();
+        netBuffer.clear();
+        engine.wrap(view(packet), netBuffer);
+        record.setData(netBuffer.array(), 0, netBuffer.position());
     }
 
     private int decrypt(DatagramPacket packet) throws SSLException {
-        byte[] buffer = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), 0, buffer, 0, packet.getLength());
-        ByteBuffer inBuffer = ByteBuffer.wrap(buffer);
-        ByteBuffer outBuffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
-        int bytesProduced = engine.unwrap(inBuffer, outBuffer).bytesProduced();
+        allocateBuffers();
+        appBuffer.clear();
+        int bytesProduced = engine.unwrap(view(packet), appBuffer).bytesProduced();
         if (bytesProduced == 0)
             return 0;
-        System.arraycopy(outBuffer.array(), 0, packet.getData(), 0, outBuffer.position());
-        packet.setLength(outBuffer.position());
+        System.arraycopy(appBuffer.array(), 0, packet.getData(), packet.getOffset(), bytesProduced);
+        packet.setLength(bytesProduced);
         return bytesProduced;
     }
 }
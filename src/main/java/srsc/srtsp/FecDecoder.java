@@ -0,0 +1,188 @@
+package srsc.srtsp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Receiver side of the SRTSP parity FEC (see FecEncoder). Keeps the xor of
+ * the packets received in the last few groups; once a group has its parity
+ * and exactly one packet missing, the xor is that packet, which is handed
+ * back to the transport to be unprotected like any other (a late original
+ * is then dropped by the replay window).
+ *
+ * Packets are added as received, before they are decrypted in place. A
+ * recovered packet is still authenticated by the SRTSP suite or was built
+ * from DTLS authenticated records only.
+ *
+ * Not thread safe.
+ */
+public class FecDecoder {
+
+    private static final int GROUPS = 4; // groups kept for reordered packets
+
+    private static final class Group {
+        long id = -1;
+        int received;
+        int count; // packets in the group, from the parity packet
+        boolean parity, done;
+        long lengths;
+        int length;
+        byte[] xor = new byte[0];
+    }
+
+    private final int groupSize;
+    private final Group[] groups = new Group[GROUPS];
+    private Group ready; // group whose missing packet was rebuilt, not taken yet
+    private long recovered, unrecoverable;
+
+    FecDecoder(int groupSize) {
+        this.groupSize = groupSize;
+        for (int i = 0; i < GROUPS; i++)
+            groups[i] = new Group();
+    }
+
+    static boolean isParity(ByteBuffer packet) {
+        int off = packet.position();
+        return packet.remaining() >= SRTSPPacketCodec.HEADERSIZE && packet.get(off) == SRTSPPacketCodec.VERSION
+                && packet.get(off + 1) == FecEncoder.PARITY;
+    }
+
+    static boolean isParity(byte[] packet, int off, int len) {
+        return len >= SRTSPPacketCodec.HEADERSIZE && packet[off] == SRTSPPacketCodec.VERSION
+                && packet[off + 1] == FecEncoder.PARITY;
+    }
+
+    /*
+     * Adds the remaining bytes of a received media packet with sequence
+     * number seq. True if it lets a lost packet be rebuilt, see
+     * takeRecovered().
+     */
+    boolean add(ByteBuffer packet, long seq) {
+        Group g = group(seq / groupSize);
+        if (g == null)
+            return false;
+        grow(g, packet.remaining());
+        for (int i = 0, p = packet.position(); i < packet.remaining(); i++)
+            g.xor[i] ^= packet.get(p + i);
+        g.lengths ^= packet.remaining();
+        g.received++;
+        return check(g);
+    }
+
+    boolean add(byte[] packet, int off, int len, long seq) {
+        Group g = group(seq / groupSize);
+        if (g == null)
+            return false;
+        grow(g, len);
+        for (int i = 0; i < len; i++)
+            g.xor[i] ^= packet[off + i];
+        g.lengths ^= len;
+        g.received++;
+        return check(g);
+    }
+
+    boolean addParity(ByteBuffer packet) {
+        int off = packet.position();
+        int count = packet.getInt(off + 2);
+        long first = packet.getLong(off + 6);
+        Group g = count <= 0 || first < 0 ? null : group(first / groupSize);
+        if (g == null || g.parity)
+            return false;
+        int len = packet.remaining() - SRTSPPacketCodec.HEADERSIZE;
+        grow(g, len);
+        for (int i = 0, p = off + SRTSPPacketCodec.HEADERSIZE; i < len; i++)
+            g.xor[i] ^= packet.get(p + i);
+        g.lengths ^= packet.getLong(off + 14);
+        g.count = count;
+        g.parity = true;
+        return check(g);
+    }
+
+    boolean addParity(byte[] packet, int off, int len) {
+        return addParity(ByteBuffer.wrap(packet, off, len));
+    }
+
+    /*
+     * Puts the last rebuilt packet into packet (cleared and flipped).
+     * False if there is none.
+     */
+    boolean takeRecovered(ByteBuffer packet) {
+        if (ready == null)
+            return false;
+        packet.clear();
+        packet.put(ready.xor, 0, (int) ready.lengths);
+        packet.flip();
+        ready = null;
+        return true;
+    }
+
+    /*
+     * Copies the last rebuilt packet to packet[off], returns its length or
+     * -1 if there is none (or it does not fit).
+     */
+    int takeRecovered(byte[] packet, int off, int capacity) {
+        if (ready == null || ready.lengths > capacity)
+            return -1;
+        int len = (int) ready.lengths;
+        System.arraycopy(ready.xor, 0, packet, off, len);
+        ready = null;
+        return len;
+    }
+
+    public long getRecovered() {
+        return this.recovered;
+    }
+
+    public long getUnrecoverable() {
+        return this.unrecoverable;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fec groups of %d: %d recovered, %d unrecoverable", groupSize, recovered,
+                unrecoverable);
+    }
+
+    private boolean check(Group g) {
+        if (g.done || !g.parity || g.received < g.count - 1)
+            return false;
+        g.done = true;
+        if (g.received == g.count)
+            return false; // nothing lost
+        if (g.lengths < SRTSPPacketCodec.HEADERSIZE || g.lengths > g.length) {
+            unrecoverable++;
+            return false;
+        }
+        recovered++;
+        ready = g;
+        return true;
+    }
+
+    // the group of that id, reusing the slot of an older one (whose missing
+    // packets are then lost for good), or null if the group is already gone
+    private Group group(long id) {
+        Group g = groups[(int) (id % GROUPS)];
+        if (g.id == id)
+            return g;
+        if (g.id > id)
+            return null;
+        if (g.id >= 0 && !g.done)
+            unrecoverable += Math.max(0, (g.parity ? g.count : groupSize) - g.received);
+        if (g == ready)
+            ready = null;
+        Arrays.fill(g.xor, 0, g.length, (byte) 0);
+        g.id = id;
+        g.received = 0;
+        g.count = groupSize;
+        g.parity = g.done = false;
+        g.lengths = 0;
+        g.length = 0;
+        return g;
+    }
+
+    private static void grow(Group g, int len) {
+        if (g.xor.length < len)
+            g.xor = Arrays.copyOf(g.xor, len);
+        g.length = Math.max(g.length, len);
+    }
+}
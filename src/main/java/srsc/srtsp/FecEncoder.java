@@ -0,0 +1,110 @@
+package srsc.srtsp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Sender side of the SRTSP parity FEC: xors every protected packet of a
+ * group into one parity packet, sent right after the last packet of the
+ * group. Groups are runs of groupSize sequence numbers (seq / groupSize),
+ * so the receiver can tell them apart without extra fields in the media
+ * packets.
+ *
+ * Parity packet, inside the same DTLS record layer as the media packets:
+ * VERSION | PARITY | packets in group (int) | first sequence (long) |
+ * xor of the packet lengths (long) | xor of the packets, zero padded
+ *
+ * Packets must be added in sequence order. Not thread safe.
+ */
+class FecEncoder {
+
+    static final byte PARITY = 0b00000001;
+
+    private final int groupSize;
+    private byte[] parity = new byte[4096];
+    private int length; // longest packet in the group
+    private int count;
+    private long first;
+    private long lengths;
+
+    FecEncoder(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    /*
+     * Adds the remaining bytes of a protected packet (without consuming
+     * them). True when it completes its group and writeParity() is due.
+     */
+    boolean add(ByteBuffer packet) {
+        long seq = SRTSPPacketCodec.peekSequence(packet);
+        if (seq < 0)
+            return false;
+        start(seq, packet.remaining());
+        for (int i = 0, p = packet.position(); i < packet.remaining(); i++)
+            parity[i] ^= packet.get(p + i);
+        return end(seq, packet.remaining());
+    }
+
+    boolean add(byte[] packet, int off, int len) {
+        long seq = SRTSPPacketCodec.peekSequence(packet, off, len);
+        if (seq < 0)
+            return false;
+        start(seq, len);
+        for (int i = 0; i < len; i++)
+            parity[i] ^= packet[off + i];
+        return end(seq, len);
+    }
+
+    // packets waiting for a parity packet (the stream ended mid group)
+    boolean hasPending() {
+        return count > 0;
+    }
+
+    int getParitySize() {
+        return SRTSPPacketCodec.HEADERSIZE + length;
+    }
+
+    /*
+     * Writes the parity packet of the current group and starts a new one.
+     */
+    void writeParity(ByteBuffer out) {
+        out.put(SRTSPPacketCodec.VERSION).put(PARITY).putInt(count).putLong(first).putLong(lengths);
+        out.put(parity, 0, length);
+        reset();
+    }
+
+    int writeParity(byte[] out, int off) {
+        ByteBuffer.wrap(out, off, getParitySize()).put(SRTSPPacketCodec.VERSION).put(PARITY).putInt(count)
+                .putLong(first).putLong(lengths);
+        System.arraycopy(parity, 0, out, off + SRTSPPacketCodec.HEADERSIZE, length);
+        int size = getParitySize();
+        reset();
+        return size;
+    }
+
+    private void start(long seq, int len) {
+        if (count > 0 && seq / groupSize != first / groupSize)
+            reset(); // a group never completed, its parity is lost
+        if (count == 0)
+            first = seq;
+        if (parity.length < len) {
+            byte[] larger = new byte[len];
+            System.arraycopy(parity, 0, larger, 0, length);
+            parity = larger;
+        }
+    }
+
+    private boolean end(long seq, int len) {
+        length = Math.max(length, len);
+        lengths ^= len;
+        count++;
+        return seq % groupSize == groupSize - 1;
+    }
+
+    private void reset() {
+        Arrays.fill(parity, 0, length, (byte) 0);
+        length = 0;
+        count = 0;
+        lengths = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package srsc.srtsp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Sliding anti-replay window over SRTSP packet sequence numbers, safe for
+ * concurrent receive workers without locks.
+ *
+ * The window is a fixed bitmap of 64-bit words. Each word covers a block of
+ * 32 consecutive sequence numbers: the high 32 bits hold the low 32 bits
+ * of the block number, as a tag, and the low 32 bits are the bitmap of
+ * packets seen, so one CAS updates both. A word is reused when a newer
+ * block maps onto it; packets older than the highest sequence seen minus
+ * the window size are rejected outright.
+ *
+ * check() is a read-only test done before any decryption; mark() is the
+ * authoritative test-and-set done once the packet authenticated.
+ */
+public class ReplayWindow {
+
+    public static final int DEFAULT_PACKETS = 1024;
+
+    private static final int BITS = 32;
+
+    private final AtomicLongArray words;
+    private final AtomicLong highest = new AtomicLong(-1);
+    private final long size;
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong tooOld = new AtomicLong();
+
+    public ReplayWindow(int packets) {
+        int n = Math.max(1, (packets + BITS - 1) / BITS);
+        words = new AtomicLongArray(n);
+        size = (long) n * BITS;
+    }
+
+    /*
+     * False if seq is a replay or too old: drop the packet without
+     * decrypting it.
+     */
+    public boolean check(long seq) {
+        if (seq < 0 || seq + size <= highest.get()) {
+            tooOld.incrementAndGet();
+            return false;
+        }
+        long block = seq / BITS;
+        long word = words.get(index(block));
+        if (bits(word) != 0 && tag(word) == (int) block && (bits(word) & bit(seq)) != 0) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Records an authenticated seq. False if another worker got the same
+     * seq first, or the window moved past it meanwhile.
+     */
+    public boolean mark(long seq) {
+        if (seq < 0 || seq + size <= highest.get()) {
+            tooOld.incrementAndGet();
+            return false;
+        }
+        long block = seq / BITS;
+        int i = index(block);
+        while (true) {
+            long word = words.get(i);
+            long updated;
+            if (bits(word) == 0 || tag(word) - (int) block < 0) // empty or an older block: start this one
+                updated = pack((int) block, bit(seq));
+            else if (tag(word) == (int) block) {
+                if ((bits(word) & bit(seq)) != 0) {
+                    duplicates.incrementAndGet();
+                    return false;
+                }
+                updated = word | bit(seq);
+            } else { // a newer block already took the word
+                tooOld.incrementAndGet();
+                return false;
+            }
+            if (words.compareAndSet(i, word, updated))
+                break;
+        }
+        highest.accumulateAndGet(seq, Math::max);
+        return true;
+    }
+
+    public long getDuplicates() {
+        return this.duplicates.get();
+    }
+
+    public long getTooOld() {
+        return this.tooOld.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("replay window %d packets: %d duplicates, %d too old", size, duplicates.get(),
+                tooOld.get());
+    }
+
+    private int index(long block) {
+        return (int) (block % words.length());
+    }
+
+    private static long pack(int tag, long bits) {
+        return (long) tag << BITS | bits;
+    }
+
+    private static int tag(long word) {
+        return (int) (word >>> BITS);
+    }
+
+    private static long bits(long word) {
+        return word & 0xffffffffL;
+    }
+
+    private static long bit(long seq) {
+        return 1L << (seq % BITS);
+    }
+}
@@ -1,11 +1,8 @@
 package srsc.srtsp;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -18,8 +15,10 @@ import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.Signature;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
@@ -37,11 +36,28 @@ import com.google.gson.Gson;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import srsc.ControlChannel;
+import srsc.HandshakeDeadline;
+import srsc.JsonCodec;
+import srsc.KeyService;
+import srsc.NonceStore;
 import srsc.Utils;
+import srsc.configEntities.Ciphersuite;
+import srsc.configEntities.Confidentiality;
 import srsc.configEntities.TLSconfig;
 import srsc.sadkdp.jsonEntities.TicketCredentialsReturn;
 import srsc.srtsp.jsonEntities.*;
 
+/*
+ * A ticket is good for one session, and only from its issue time (signed
+ * by the signaling server) to ticketLifetime ms after it, give or take
+ * MAX_CLOCK_SKEW between the two servers' clocks. Its NC1 is remembered
+ * that long and then forgotten, so the redeemed tickets take memory for the
+ * tickets of the last few minutes and not of the whole uptime. The price:
+ * a proxy must redeem its ticket within the lifetime, and the servers'
+ * clocks must agree within the skew; a restart forgets every NC1, which is
+ * safe only once the lifetime of the tickets issued before it has passed.
+ */
 public class SRTSP {
 
     private static final int HEADERSIZE = Byte.SIZE / 8 + Byte.SIZE / 8 + Integer.SIZE / 8;
@@ -52,22 +68,27 @@ public class SRTSP {
     private static final byte MESSAGE_3 = 0b00000011;
     private static final byte MESSAGE_4 = 0b00000100;
 
+    public static final long DEFAULT_TICKET_LIFETIME = TimeUnit.MINUTES.toMillis(5);
+    public static final long MAX_CLOCK_SKEW = TimeUnit.SECONDS.toMillis(30);
+
     Gson gson;
     KeyStore ks, ts;
     String keyStorePassword, trustStorePassword;
-    Set<Integer> nounces;
+    KeyService keyService; // the keys of ks, unlocked once
+    NonceStore nounces; // seen within NonceStore.DEFAULT_WINDOW
+    NonceStore redeemedTickets; // the NC1 of every ticket redeemed, for as long as it could be redeemed
+    long ticketLifetime; // ms
     TLSconfig TLSconf;
 
     SSLServerSocket serverSocket;
-    SSLSocket clientSocket;
-    BufferedWriter out;
-    BufferedReader in;
     int ackPaPrimeiraFrame;
+    SSLContext clientContext; // built once, requestMovie may run for several sessions at a time
+    boolean binaryFraming = true; // how requestMovie frames its messages, see ControlChannel
 
     public SRTSP(String pathToKeyStore, String keyStorePassword, String pathToTrustStore, String trustStorePassword,
             String tlsConf) throws Exception {
         Security.addProvider(new BouncyCastleProvider());
-        this.gson = new Gson();
+        this.gson = JsonCodec.GSON;
         String TLSconfigJSON = new String(Files.readAllBytes(Paths.get(tlsConf)));
         this.TLSconf = gson.fromJson(TLSconfigJSON, TLSconfig.class);
 
@@ -78,11 +99,100 @@ public class SRTSP {
 
         this.keyStorePassword = keyStorePassword;
         this.trustStorePassword = trustStorePassword;
-        this.nounces = new HashSet<>();
+        this.keyService = new KeyService(ks, keyStorePassword);
+        this.nounces = new NonceStore();
+        setTicketLifetime(DEFAULT_TICKET_LIFETIME);
+    }
+
+    /*
+     * How long after it is issued a ticket can be redeemed, in ms. Before
+     * the first receiveTicket: the tickets already redeemed are forgotten.
+     */
+    public void setTicketLifetime(long ticketLifetime) {
+        if (ticketLifetime <= 0)
+            throw new IllegalArgumentException("ticket lifetime must be positive: " + ticketLifetime);
+        this.ticketLifetime = ticketLifetime;
+        // a ticket is good from issued - MAX_CLOCK_SKEW to issued + ticketLifetime
+        this.redeemedTickets = new NonceStore(ticketLifetime + MAX_CLOCK_SKEW, NonceStore.DEFAULT_BUCKETS,
+                NonceStore.DEFAULT_STRIPES);
+    }
+
+    /*
+     * The next proxy to connect on port. The TLS handshake and the ticket
+     * exchange are left to receiveTicket, so they need not hold up the
+     * thread accepting connections.
+     */
+    public SSLSocket accept(int port) throws Exception {
+        synchronized (this) {
+            if (serverSocket == null)
+                serverSocket = createServerSocket(port);
+        }
+        return (SSLSocket) serverSocket.accept();
+    }
+
+    /*
+     * Redeems the ticket the proxy sends over socket and closes it. timeout
+     * (ms, 0 for none) bounds each read and the whole exchange, TLS
+     * handshake included. Safe to call from several threads at once.
+     */
+    public RequestAndCredentials receiveTicket(SSLSocket socket, int streamingPort, int timeout) throws Exception {
+        socket.setSoTimeout(timeout);
+        ControlChannel control = new ControlChannel(socket, VERSION);
+        byte[] message;
+        int myLastNounce;
+        RequestAndCredentials requestAndCredentials;
+        TicketCredentials tc;
+
+        HandshakeDeadline deadline = HandshakeDeadline.start(socket, timeout);
+        try (deadline) {
+            message = control.read();
+            requestAndCredentials = decodeMessage1(message);
+            tc = requestAndCredentials.getTicketCredentials();
+
+            long age = System.currentTimeMillis() - tc.getIssued();
+            if (age > ticketLifetime || age < -MAX_CLOCK_SKEW)
+                throw new Exception("Ticket expired or not yet valid, issued " + age + " ms ago");
+            if (!redeemedTickets.add(tc.getN4_())) // NC1, a ticket is good for one session only
+                throw new Exception("Ticket already redeemed");
+
+            myLastNounce = newNounce();
+            byte[] verification = encodeMessage2(tc.getSessionKey(), tc.getSessionIV(), tc.getMacKey(), requestAndCredentials.getN1()+1, myLastNounce, true);
+            control.write(verification);
+
+            message = control.read();
+            AckVerification ackVerification = decodeMessage3(tc.getSessionKey(), tc.getSessionIV(), tc.getMacKey(), message, myLastNounce);
+            if (ackVerification.getN2_() != myLastNounce + 1)
+                throw new Exception();
+
+            addSeenNounce(ackVerification.getN2_());
+            tc.setCiphersuiteConf(mediaSuite(tc.getCiphersuiteConf(), tc.getSessionKey(), tc.getMacKey(),
+                    requestAndCredentials.getN1(), myLastNounce, ackVerification.getN3()));
+
+            byte[] initMarkFrame =  Utils.toByteArray("initmark-frame");
+
+            byte[] SyncInitialFrame = encodeMessage4(tc.getSessionKey(), tc.getSessionIV(), tc.getMacKey(), initMarkFrame, ackVerification.getN3()+1, streamingPort);
+            control.write(SyncInitialFrame);
+        } catch (IOException e) {
+            if (deadline.expired())
+                throw new Exception("Proxy " + socket.getRemoteSocketAddress() + " did not redeem its ticket in "
+                        + timeout + " ms");
+            throw e;
+        } finally {
+            control.close();
+        }
+
+        return requestAndCredentials;
     }
 
-    public TicketCredentials startReceiveTicket(int port) throws Exception {
+    /*
+     * Where the media for the proxy on socket goes: the port it announced
+     * in message 1, or 9999 when it did not.
+     */
+    public static InetSocketAddress getClientAddress(Socket socket, int clientPort) {
+        return new InetSocketAddress(socket.getInetAddress(), clientPort != 0 ? clientPort : 9999);
+    }
 
+    private SSLServerSocket createServerSocket(int port) throws Exception {
         SSLContext sc = SSLContext.getInstance("TLS");
         KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
         TrustManagerFactory tmf = TrustManagerFactory.getInstance("PKIX");
@@ -91,7 +201,7 @@ public class SRTSP {
         sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
 
         SSLServerSocketFactory ssf = sc.getServerSocketFactory();
-        serverSocket = (SSLServerSocket) ssf
+        SSLServerSocket serverSocket = (SSLServerSocket) ssf
                 .createServerSocket(port);
 
         switch (TLSconf.getAuthentication()) {
@@ -111,61 +221,24 @@ public class SRTSP {
         serverSocket.setEnabledProtocols(new String[] { TLSconf.getVersion() });
         serverSocket.setEnabledCipherSuites(TLSconf.getCiphersuites());
 
-        clientSocket = (SSLSocket) serverSocket.accept();
-        out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-        in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        String message;
-        int myLastNounce;
-        TicketCredentials tc;
-
-        message = in.readLine();
-        RequestAndCredentials requestAndCredentials = decodeMessage1(message);
-        tc = requestAndCredentials.getTicketCredentials();
-
-        addSeenNounce(tc.getN4_()); //check NC1
-
-        myLastNounce = newNounce();
-        String verification = encodeMessage2(tc.getSessionKey(), tc.getSessionIV(), tc.getMacKey(), requestAndCredentials.getN1()+1, myLastNounce, true);
-        out.write(verification);
-        out.newLine();
-        out.flush();
-
-        message = in.readLine();
-        AckVerification ackVerification = decodeMessage3(tc.getSessionKey(), tc.getSessionIV(), tc.getMacKey(), message, myLastNounce);
-        if (ackVerification.getN2_() != myLastNounce + 1)
-            throw new Exception();
-
-        addSeenNounce(ackVerification.getN2_());
-
-        byte[] initMarkFrame =  Utils.toByteArray("initmark-frame");
-
-        String SyncInitialFrame = encodeMessage4(tc.getSessionKey(), tc.getSessionIV(), tc.getMacKey(), initMarkFrame, ackVerification.getN3()+1);
-        out.write(SyncInitialFrame);
-        out.newLine();
-        out.flush();   
-
-        return tc;
+        return serverSocket;
     }
 
-    public InetSocketAddress getClientAddress() throws Exception{
-        out.close();
-        in.close();
-        clientSocket.close();
-        serverSocket.close();
-
-        return new InetSocketAddress(clientSocket.getInetAddress(), 9999);
+    public int requestMovie(TicketCredentialsReturn ticketCredentials) throws Exception {
+        return requestMovie(ticketCredentials, 0);
     }
 
-    public void requestMovie(TicketCredentialsReturn ticketCredentials) throws Exception {
-        SSLContext sc = SSLContext.getInstance("TLS");
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance("PKIX");
-        kmf.init(ks, keyStorePassword.toCharArray());
-        tmf.init(ts);
-        sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+    /*
+     * proxyPort is the UDP port the proxy receives this session on, 0 for
+     * the default one. With the SRTSP protection profile the suite of
+     * ticketCredentials is replaced by the one of this session, see
+     * mediaSuite. Safe to call from several threads at once.
+     */
+    public int requestMovie(TicketCredentialsReturn ticketCredentials, int proxyPort) throws Exception {
+        SSLContext sc = getClientContext();
 
         SSLSocketFactory factory = (SSLSocketFactory) sc.getSocketFactory();
-        clientSocket = (SSLSocket)factory.createSocket(ticketCredentials.getIp(), Integer.parseInt(ticketCredentials.getPort()));
+        SSLSocket clientSocket = (SSLSocket)factory.createSocket(ticketCredentials.getIp(), Integer.parseInt(ticketCredentials.getPort()));
 
         switch (TLSconf.getAuthentication()) {
             case "MUTUAL": // Nothing to do
@@ -187,18 +260,16 @@ public class SRTSP {
 
         clientSocket.startHandshake();
 
-        out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-        in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        String message;
+        ControlChannel control = new ControlChannel(clientSocket, VERSION, binaryFraming);
+        byte[] message;
         int myLastNounce;
 
         myLastNounce = newNounce();
-        String requestAndCredentials = encodeMessage1(ticketCredentials.getStreamTicket(), ticketCredentials.getStreamSigBytes(), myLastNounce);
-        out.write(requestAndCredentials);
-        out.newLine();
-        out.flush();
+        int n1 = myLastNounce;
+        byte[] requestAndCredentials = encodeMessage1(ticketCredentials.getStreamTicket(), ticketCredentials.getStreamSigBytes(), myLastNounce, proxyPort);
+        control.write(requestAndCredentials);
 
-        message = in.readLine();
+        message = control.read();
         Verification verification = decodeMessage2(ticketCredentials.getSessionKey(), ticketCredentials.getSessionIV(), ticketCredentials.getMacKey(), message, myLastNounce);
         if(verification.getN1_()!=myLastNounce+1 || !verification.getTicketValidityConfirmation())
             throw new Exception();
@@ -206,23 +277,43 @@ public class SRTSP {
         addSeenNounce(verification.getN1_());
 
         myLastNounce = newNounce();
-        String ackVerification = encodeMessage3(ticketCredentials.getSessionKey(), ticketCredentials.getSessionIV(), ticketCredentials.getMacKey(), verification.getN2()+1, myLastNounce);
-        out.write(ackVerification);
-        out.newLine();
-        out.flush();
+        byte[] ackVerification = encodeMessage3(ticketCredentials.getSessionKey(), ticketCredentials.getSessionIV(), ticketCredentials.getMacKey(), verification.getN2()+1, myLastNounce);
+        control.write(ackVerification);
 
-        message = in.readLine();
+        message = control.read();
         SyncInitialFrame syncInitialFrame = decodeMessage4(ticketCredentials.getSessionKey(), ticketCredentials.getSessionIV(), ticketCredentials.getMacKey(), message, myLastNounce);
         if(syncInitialFrame.getN3_()!=myLastNounce+1)
             throw new Exception();
 
         addSeenNounce(syncInitialFrame.getN3_());
+        ticketCredentials.setCiphersuiteConf(mediaSuite(ticketCredentials.getCiphersuiteConf(),
+                ticketCredentials.getSessionKey(), ticketCredentials.getMacKey(), n1, verification.getN2(),
+                myLastNounce));
+
+        control.close();
 
-        clientSocket.close();
+        return syncInitialFrame.getPort();
     }
 
-        private String encodeMessage1(byte[] ticket, byte[] signature, int n1) {
-        RequestAndCredentialsSend content = new RequestAndCredentialsSend(ticket, signature, n1);
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
+    }
+
+    private synchronized SSLContext getClientContext() throws Exception {
+        if (clientContext == null) {
+            SSLContext sc = SSLContext.getInstance("TLS");
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("PKIX");
+            kmf.init(ks, keyStorePassword.toCharArray());
+            tmf.init(ts);
+            sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+            clientContext = sc;
+        }
+        return clientContext;
+    }
+
+        private byte[] encodeMessage1(byte[] ticket, byte[] signature, int n1, int port) {
+        RequestAndCredentialsSend content = new RequestAndCredentialsSend(ticket, signature, n1, port);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
         int payloadSize = payload.length;
@@ -232,12 +323,10 @@ public class SRTSP {
 
         System.out.println("Msg1 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private RequestAndCredentials decodeMessage1(String dataString) throws Exception {
-
-        byte[] data = Utils.hexStringToByteArray(dataString);
+    private RequestAndCredentials decodeMessage1(byte[] data) throws Exception {
         System.out.println("Msg1 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -253,22 +342,20 @@ public class SRTSP {
         String message = Utils.toString(payload);
         RequestAndCredentialsSend obj = gson.fromJson(message, RequestAndCredentialsSend.class);
 
-        Signature signature = Signature.getInstance("SHA512withECDSA", "BC");
-        signature.initVerify(ks.getCertificate("signalingserver").getPublicKey());
+        Signature signature = keyService.verifier("signalingserver");
         signature.update(obj.getTicketCredentials());
         if (!signature.verify(obj.getSignature()))
             throw new Exception();
 
-        Cipher cipher = Cipher.getInstance("ECIES", "BC");
-        cipher.init(Cipher.DECRYPT_MODE, ks.getKey("streamingserver", keyStorePassword.toCharArray()));
+        Cipher cipher = keyService.ecies(Cipher.DECRYPT_MODE, "streamingserver");
         byte[] output = cipher.doFinal(obj.getTicketCredentials());
         String messageTPB = Utils.toString(output);
         TicketCredentials tpbObj = gson.fromJson(messageTPB, TicketCredentials.class);
 
-        return new RequestAndCredentials(tpbObj, obj.getN1());
+        return new RequestAndCredentials(tpbObj, obj.getN1(), obj.getPort());
     }
 
-    private String encodeMessage2(byte[] sessionKey, byte[] ivBytes, byte[] macKey, int n1_, int n2,
+    private byte[] encodeMessage2(byte[] sessionKey, byte[] ivBytes, byte[] macKey, int n1_, int n2,
             boolean TickeyValidityConfirmation) throws Exception {
 
         Verification content = new Verification(n1_, n2, TickeyValidityConfirmation);
@@ -284,9 +371,7 @@ public class SRTSP {
         int encryptedPayloadSize = encryptedPayload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(macKey, "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keyService.mac(macKey);
         hMac.update(Utils.toByteArray(n1_));
         byte[] integrityCheck = hMac.doFinal();
         int intCheckSize = hMac.getMacLength();
@@ -296,12 +381,11 @@ public class SRTSP {
 
         System.out.println("Msg2 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private Verification decodeMessage2(byte[] sessionKey, byte[] ivBytes, byte[] macKey, String dataString,
+    private Verification decodeMessage2(byte[] sessionKey, byte[] ivBytes, byte[] macKey, byte[] data,
             int myLastNounce) throws Exception {
-        byte[] data = Utils.hexStringToByteArray(dataString);
         System.out.println("Msg2 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -317,9 +401,7 @@ public class SRTSP {
         byte[] integrityCheck = new byte[data.length - HEADERSIZE - encryptedPayloadSize];
         dataBuff.get(integrityCheck);
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(macKey, "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keyService.mac(macKey);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
@@ -337,7 +419,7 @@ public class SRTSP {
         return toRet;
     }
 
-    private String encodeMessage3(byte[] sessionKey, byte[] ivBytes, byte[] macKey, int n2_, int n3) throws Exception {
+    private byte[] encodeMessage3(byte[] sessionKey, byte[] ivBytes, byte[] macKey, int n2_, int n3) throws Exception {
         AckVerification content = new AckVerification(n2_, n3);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
@@ -351,9 +433,7 @@ public class SRTSP {
         int encryptedPayloadSize = encryptedPayload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(macKey, "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keyService.mac(macKey);
         hMac.update(Utils.toByteArray(n2_));
         byte[] integrityCheck = hMac.doFinal();
         int intCheckSize = hMac.getMacLength();
@@ -363,13 +443,11 @@ public class SRTSP {
 
         System.out.println("Msg3 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private AckVerification decodeMessage3(byte[] sessionKey, byte[] ivBytes, byte[] macKey, String dataString,
+    private AckVerification decodeMessage3(byte[] sessionKey, byte[] ivBytes, byte[] macKey, byte[] data,
             int myLastNounce) throws Exception {
-
-        byte[] data = Utils.hexStringToByteArray(dataString);
         System.out.println("Msg3 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -385,9 +463,7 @@ public class SRTSP {
         byte[] integrityCheck = new byte[data.length - HEADERSIZE - encryptedPayloadSize];
         dataBuff.get(integrityCheck);
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(macKey, "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keyService.mac(macKey);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
@@ -405,9 +481,9 @@ public class SRTSP {
         return toRet;
     }
 
-    private String encodeMessage4(byte[] sessionKey, byte[] ivBytes, byte[] macKey, byte[] frame, int n3_)
-            throws Exception {
-        SyncInitialFrame content = new SyncInitialFrame(n3_, frame);
+    private byte[] encodeMessage4(byte[] sessionKey, byte[] ivBytes, byte[] macKey, byte[] frame, int n3_,
+            int streamingPort) throws Exception {
+        SyncInitialFrame content = new SyncInitialFrame(n3_, frame, streamingPort);
         String message = gson.toJson(content);
         byte[] payload = Utils.toByteArray(message);
 
@@ -420,9 +496,7 @@ public class SRTSP {
         int encryptedPayloadSize = encryptedPayload.length;
 
         // Integrity check
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(macKey, "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keyService.mac(macKey);
         hMac.update(Utils.toByteArray(n3_));
         byte[] integrityCheck = hMac.doFinal();
         int intCheckSize = hMac.getMacLength();
@@ -432,13 +506,11 @@ public class SRTSP {
 
         System.out.println("Msg4 Sent: " + Utils.toHex(toRet));
 
-        return Utils.toHex(toRet);
+        return toRet;
     }
 
-    private SyncInitialFrame decodeMessage4(byte[] sessionKey, byte[] ivBytes, byte[] macKey, String dataString,
+    private SyncInitialFrame decodeMessage4(byte[] sessionKey, byte[] ivBytes, byte[] macKey, byte[] data,
             int myLastNounce) throws Exception {
-
-        byte[] data = Utils.hexStringToByteArray(dataString);
         System.out.println("Msg4 Received: " + Utils.toHex(data));
         ByteBuffer dataBuff = ByteBuffer.wrap(data);
 
@@ -454,9 +526,7 @@ public class SRTSP {
         byte[] integrityCheck = new byte[data.length - HEADERSIZE - encryptedPayloadSize];
         dataBuff.get(integrityCheck);
 
-        Mac hMac = Mac.getInstance("HmacSHA512");
-        Key hMacKey = new SecretKeySpec(macKey, "HmacSHA512");
-        hMac.init(hMacKey);
+        Mac hMac = keyService.mac(macKey);
         hMac.update(Utils.toByteArray(myLastNounce + 1));
         if (!MessageDigest.isEqual(hMac.doFinal(), integrityCheck)) {
             throw new Exception();
@@ -475,19 +545,54 @@ public class SRTSP {
     }
 
 
-    private int newNounce() {
-        int random;
-        do {
-            random = new SecureRandom().nextInt();
-        } while (nounces.contains(random+1));
+    /*
+     * The suite that protects the media of a session. With the SRTSP
+     * protection profile there is no DTLS, and the movie suite key is known
+     * to everyone who bought the movie, so the key and iv are derived from
+     * the ticket's session and MAC keys and the nonces of this handshake
+     * (HKDF-SHA256, RFC 5869). Only the two ends of the session can then
+     * read or forge its packets, the ready packet included, and none of
+     * them fits another session. The suite must be AEAD, there is no
+     * integrity key to derive.
+     */
+    static Ciphersuite mediaSuite(Ciphersuite movie, byte[] sessionKey, byte[] macKey, int n1, int n2, int n3)
+            throws Exception {
+        if (movie.usesDTLS())
+            return movie;
+        Confidentiality conf = movie.getConfidentiality();
+        if (!conf.isAEAD())
+            throw new Exception("The SRTSP protection profile needs an AEAD suite, not " + conf.getSpec());
+
+        Mac hMac = Mac.getInstance("HmacSHA256");
+        hMac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        hMac.init(new SecretKeySpec(hMac.doFinal(sessionKey), "HmacSHA256"));
+        byte[] keys = new byte[conf.getKey().length + conf.getIv().length];
+        byte[] t = new byte[0];
+        for (int off = 0, i = 1; off < keys.length; off += t.length, i++) {
+            hMac.update(t);
+            hMac.update(Utils.toByteArray("SRTSP media"));
+            hMac.update(Utils.toByteArray(n1));
+            hMac.update(Utils.toByteArray(n2));
+            hMac.update(Utils.toByteArray(n3));
+            hMac.update((byte) i);
+            t = hMac.doFinal();
+            System.arraycopy(t, 0, keys, off, Math.min(t.length, keys.length - off));
+        }
 
-        return random;
+        Ciphersuite session = new Ciphersuite(new Confidentiality(conf.getSpec(),
+                Arrays.copyOf(keys, conf.getKey().length), conf.getKeySpec(),
+                Arrays.copyOfRange(keys, conf.getKey().length, keys.length)), null);
+        session.setProtection(movie.getProtection());
+        session.setFec(movie.getFec());
+        return session;
+    }
+
+    private int newNounce() {
+        return nounces.next();
     }
 
     private void addSeenNounce(int nounce) throws Exception{
-        if(!nounces.contains(nounce))
-            nounces.add(nounce);
-        else
+        if(!nounces.add(nounce))
             throw new Exception();
     }
 
@@ -0,0 +1,407 @@
+package srsc.srtsp;
+
+import srsc.configEntities.Ciphersuite;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+
+/*
+ * SRTSP media transport over a DatagramChannel: same wire format as
+ * SRTSPDatagramSocket (SRTSP packet inside a DTLS record), but every send and
+ * receive works on buffers allocated once per channel, so a frame goes
+ * frame buffer -> SRTSP packet -> DTLS record -> channel without new arrays.
+ *
+ * The DTLS handshake runs in blocking mode in the constructor, which gives up
+ * (and closes the channel) if the peer has not finished it by the setup
+ * timeout. After that the channel can be switched to non-blocking and registered with a Selector, so
+ * one thread can drive many sessions.
+ *
+ * With the SRTSP protection profile of the movie suite there is no DTLS at
+ * all, the SRTSP packets go straight into the datagrams, protected with a
+ * suite derived for the session (see SRTSP.mediaSuite).
+ *
+ * Frames can also be protected ahead of time on other threads, each with its
+ * own codec from newCodec() and a sequence number from nextSequence(), then
+ * wrap()ped in sequence order and sent with sendRecord() (see FramePipeline).
+ *
+ * With FEC in the movie suite a parity packet follows every group of
+ * packets (see FecEncoder), and the receiver rebuilds a lost packet of a
+ * group from it.
+ *
+ * Not thread safe: one sender and one receiver thread at most, and one
+ * thread at a time in wrap().
+ */
+public class SRTSPDatagramChannel {
+
+    private final DatagramChannel channel;
+    private final SSLEngine engine;
+    private final SRTSPPacketCodec codec;
+    private final Ciphersuite suite;
+    private final SocketAddress peer;
+    private final ReplayWindow window = new ReplayWindow(ReplayWindow.DEFAULT_PACKETS);
+    private FecEncoder fecEncoder; // null without FEC
+    private FecDecoder fecDecoder;
+    private long dropped; // packets that did not unprotect
+
+    private static final int MAX_DATAGRAM = 65507;
+
+    private ByteBuffer packet; // SRTSP packet, DTLS application data
+    private ByteBuffer net; // DTLS record as seen on the wire (the SRTSP packet without DTLS)
+    private ByteBuffer parityPacket, parityRecord;
+    private long setupDeadline; // System.nanoTime(), 0 for none
+
+    public SRTSPDatagramChannel(Ciphersuite c, boolean isServer, String keystore, String keystorePassword,
+            String truststore, String truststorePassword, String dtlsConf, SocketAddress destAddress,
+            SocketAddress ourAddress) throws Exception {
+        this(c, isServer, keystore, keystorePassword, truststore, truststorePassword, dtlsConf, destAddress,
+                DatagramChannel.open().bind(ourAddress), 0);
+    }
+
+    /*
+     * Runs the DTLS handshake over an already bound channel, so a server can
+     * bind its media port before announcing it and no ClientHello is lost.
+     * setupTimeout (ms, 0 for none) bounds the DTLS handshake or the wait
+     * for the ready packet.
+     */
+    public SRTSPDatagramChannel(Ciphersuite c, boolean isServer, String keystore, String keystorePassword,
+            String truststore, String truststorePassword, String dtlsConf, SocketAddress destAddress,
+            DatagramChannel channel, int setupTimeout) throws Exception {
+        this.channel = channel;
+        this.peer = destAddress;
+        this.suite = c;
+        if (setupTimeout > 0)
+            setupDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(setupTimeout);
+        try {
+            codec = new SRTSPPacketCodec(c);
+            if (c.usesDTLS()) {
+                engine = DTLSSocket.createEngine(isServer, keystore, keystorePassword, truststore,
+                        truststorePassword, dtlsConf);
+                beginHandshake();
+                // sized for the negotiated session, larger than before the handshake
+                packet = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+                net = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+            } else {
+                engine = null;
+                packet = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+                net = packet;
+                if (isServer)
+                    awaitReady();
+                else
+                    send(ByteBuffer.allocate(0), 0);
+            }
+            if (c.getFec() > 0) {
+                fecEncoder = new FecEncoder(c.getFec());
+                fecDecoder = new FecDecoder(c.getFec());
+                parityPacket = ByteBuffer.allocateDirect(packet.capacity() + SRTSPPacketCodec.HEADERSIZE);
+                parityRecord = engine == null ? parityPacket : ByteBuffer.allocateDirect(getRecordSize());
+            }
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // SRTSP protection profile: without a DTLS handshake the server waits for
+    // the empty packet the proxy sends once it is listening. Anything that
+    // does not unprotect with the session suite (keyed by this session's
+    // ticket and SRTSP nonces, see SRTSP.mediaSuite) is dropped.
+    private void awaitReady() throws IOException {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        while (true) {
+            packet.clear();
+            setupReceive(packet);
+            packet.flip();
+            try {
+                if (codec.unprotect(packet, empty) == 0)
+                    return;
+            } catch (GeneralSecurityException e) {
+                dropped++;
+            }
+        }
+    }
+
+    // Same handshake loop as DTLSSocket, over the channel. A datagram may
+    // carry several records: keep unwrapping it before reading the next one
+    private void beginHandshake() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer app = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        in.flip();
+
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        SSLEngineResult result;
+        while (status != NOT_HANDSHAKING && status != FINISHED) {
+            switch (status) {
+                case NEED_TASK:
+                    Runnable runnable;
+                    while ((runnable = engine.getDelegatedTask()) != null)
+                        runnable.run();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    out.clear();
+                    result = engine.wrap(empty, out);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        // the session packet size grows once the protocol is negotiated
+                        out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                        break;
+                    }
+                    out.flip();
+                    channel.send(out, peer);
+                    status = result.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                    if (!in.hasRemaining()) {
+                        in.clear();
+                        setupReceive(in);
+                        in.flip();
+                    }
+                    app.clear();
+                    result = engine.unwrap(in, app);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        app = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                    status = result.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP_AGAIN:
+                    app.clear();
+                    status = engine.unwrap(empty, app).getHandshakeStatus();
+                    break;
+            }
+        }
+    }
+
+    // channel.receive for the constructor, up to the setup deadline
+    private void setupReceive(ByteBuffer in) throws IOException {
+        if (setupDeadline == 0) {
+            channel.receive(in);
+            return;
+        }
+        channel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (channel.receive(in) == null) {
+                long left = TimeUnit.NANOSECONDS.toMillis(setupDeadline - System.nanoTime());
+                if (left <= 0)
+                    throw new SocketTimeoutException("No media setup from " + peer);
+                selector.select(left);
+            }
+        }
+        channel.configureBlocking(true);
+    }
+
+    /*
+     * Protects and sends the remaining bytes of frame to the peer as the next
+     * packet of the stream, stamped with the frame's media timestamp.
+     * Returns false if the channel is non-blocking and the datagram was not
+     * sent.
+     */
+    public boolean send(ByteBuffer frame, long timestamp) throws IOException {
+        try {
+            packet.clear();
+            codec.protect(frame, packet, codec.nextSequence(), timestamp);
+            packet.flip();
+            boolean parity = fecEncoder != null && fecEncoder.add(packet);
+            boolean sent;
+            if (engine == null) {
+                sent = channel.send(packet, peer) > 0;
+            } else {
+                net.clear();
+                wrap(packet, net);
+                net.flip();
+                sent = channel.send(net, peer) > 0;
+            }
+            if (parity)
+                sendParity();
+            return sent;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    /*
+     * A codec for the movie suite of this channel, for protecting packets
+     * on another thread.
+     */
+    public SRTSPPacketCodec newCodec() throws GeneralSecurityException {
+        return new SRTSPPacketCodec(suite);
+    }
+
+    public long nextSequence() {
+        return codec.nextSequence();
+    }
+
+    public int getPacketSize(int payloadSize) {
+        return codec.getPacketSize(payloadSize);
+    }
+
+    // largest datagram wrap() can produce
+    public int getRecordSize() {
+        return engine == null ? MAX_DATAGRAM : engine.getSession().getPacketBufferSize();
+    }
+
+    /*
+     * Puts the remaining bytes of an SRTSP packet into record as the datagram
+     * to send: a DTLS record, or the packet itself without DTLS. Records must
+     * be wrapped in the order they will be sent.
+     */
+    public void wrap(ByteBuffer packet, ByteBuffer record) throws IOException {
+        if (engine == null)
+            record.put(packet);
+        else
+            engine.wrap(packet, record);
+    }
+
+    /*
+     * wrap() that also feeds the FEC group of the packet. True if the
+     * group is complete and its parity record was wrapped into parity, to
+     * be sent right after record.
+     */
+    public boolean wrap(ByteBuffer packet, ByteBuffer record, ByteBuffer parity) throws IOException {
+        boolean complete = fecEncoder != null && fecEncoder.add(packet);
+        wrap(packet, record);
+        if (complete) {
+            parityPacket.clear();
+            fecEncoder.writeParity(parityPacket);
+            parityPacket.flip();
+            wrap(parityPacket, parity);
+        }
+        return complete;
+    }
+
+    /*
+     * Sends the parity packet of an incomplete FEC group, at the end of the
+     * stream.
+     */
+    public void flush() throws IOException {
+        if (fecEncoder != null && fecEncoder.hasPending())
+            sendParity();
+    }
+
+    private void sendParity() throws IOException {
+        parityPacket.clear();
+        fecEncoder.writeParity(parityPacket);
+        parityPacket.flip();
+        if (engine != null) {
+            parityRecord.clear();
+            wrap(parityPacket, parityRecord);
+            parityRecord.flip();
+        }
+        channel.send(parityRecord, peer);
+    }
+
+    /*
+     * Sends the remaining bytes of a wrap()ped record to the peer.
+     */
+    public boolean sendRecord(ByteBuffer record) throws IOException {
+        return channel.send(record, peer) > 0;
+    }
+
+    /*
+     * Receives the next SRTSP payload into frame (from its position).
+     * Returns the payload size, or -1 if the channel is non-blocking and
+     * nothing is available. A packet that does not unprotect is counted and
+     * dropped, as in SRTSPDatagramSocket.receive.
+     */
+    public int receive(ByteBuffer frame) throws IOException {
+        while (true) {
+            // a packet rebuilt from FEC parity goes through the same checks
+            boolean recovered = fecDecoder != null && fecDecoder.takeRecovered(packet);
+            if (!recovered) {
+                net.clear();
+                if (channel.receive(net) == null)
+                    return -1;
+                net.flip();
+                if (engine != null) {
+                    packet.clear();
+                    if (engine.unwrap(net, packet).bytesProduced() == 0)
+                        continue; // DTLS record without application data
+                    packet.flip();
+                }
+                if (FecDecoder.isParity(packet)) {
+                    if (fecDecoder != null)
+                        fecDecoder.addParity(packet);
+                    continue;
+                }
+            }
+
+            // replayed or too old: dropped before decrypting it
+            long seq = SRTSPPacketCodec.peekSequence(packet);
+            if (seq >= 0 && !window.check(seq))
+                continue;
+            if (fecDecoder != null && !recovered && seq >= 0)
+                fecDecoder.add(packet, seq);
+            try {
+                int position = frame.position();
+                int payloadSize = codec.unprotect(packet, frame);
+                if (!window.mark(seq)) {
+                    frame.position(position);
+                    continue;
+                }
+                return payloadSize;
+            } catch (GeneralSecurityException e) {
+                dropped++;
+            }
+        }
+    }
+
+    // sequence number and media timestamp of the last packet received
+    public long getReceivedSequence() {
+        return codec.getReceivedSequence();
+    }
+
+    public long getReceivedTimestamp() {
+        return codec.getReceivedTimestamp();
+    }
+
+    // packets dropped because they did not unprotect
+    public long getDropped() {
+        return dropped;
+    }
+
+    public ReplayWindow getReplayWindow() {
+        return this.window;
+    }
+
+    public boolean usesFec() {
+        return fecEncoder != null;
+    }
+
+    // null without FEC
+    public FecDecoder getFecDecoder() {
+        return this.fecDecoder;
+    }
+
+    public SRTSPDatagramChannel configureBlocking(boolean block) throws IOException {
+        channel.configureBlocking(block);
+        return this;
+    }
+
+    public SelectionKey register(Selector selector, int ops, Object att) throws ClosedChannelException {
+        return channel.register(selector, ops, att);
+    }
+
+    public SocketAddress getPeer() {
+        return this.peer;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
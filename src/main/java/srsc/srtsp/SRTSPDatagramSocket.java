@@ -1,117 +1,179 @@
 package srsc.srtsp;
 
-import srsc.Utils;
 import srsc.configEntities.Ciphersuite;
 
 import java.io.IOException;
 import java.net.*;
-import java.nio.ByteBuffer;
-import java.security.Key;
-import java.security.MessageDigest;
-
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 
 public class SRTSPDatagramSocket extends DTLSSocket {
 
-    private static final int HEADERSIZE = Byte.SIZE / 8 + Byte.SIZE / 8 + Integer.SIZE / 8;
-
-    private static final byte VERSION = 0b00000011;
-    private static final byte MESSAGE = 0b00000000;
+    SRTSPPacketCodec codec;
+    private final Ciphersuite suite;
+    private final ReplayWindow window = new ReplayWindow(ReplayWindow.DEFAULT_PACKETS);
+    private FecEncoder fecEncoder; // null without FEC
+    private FecDecoder fecDecoder;
+    private long dropped; // packets that did not unprotect, see receive
 
-    SecretKeySpec key;
-    Cipher cipher;
-    Mac hMac;
-    Key hMacKey;
-    IvParameterSpec ivSpec = null;
+    // per socket scratch for the hot path, no allocation per packet
+    private byte[] packetData = new byte[4096];
+    private final DatagramPacket packet = new DatagramPacket(packetData, 0);
 
     public SRTSPDatagramSocket(Ciphersuite c, boolean isServer, String keystore, String keystorePassword, String truststore, String truststorePassword, String dtlsConf, SocketAddress destAddress, SocketAddress ourAddress) throws Exception {
         super(isServer, keystore, keystorePassword, truststore, truststorePassword, dtlsConf, ourAddress);
-        super.beginHandshake(destAddress);
-        key = new SecretKeySpec(c.getConfidentiality().getKey(), c.getConfidentiality().getKeySpec());
-        if(c.getConfidentiality().getIv()!=null)
-            ivSpec = new IvParameterSpec(c.getConfidentiality().getIv());
-        cipher = Cipher.getInstance(c.getConfidentiality().getSpec());
-        hMac = Mac.getInstance(c.getIntegrity().getSpec());
-        hMacKey = new SecretKeySpec(c.getIntegrity().getKey(), c.getIntegrity().getKeySpec());
+        codec = new SRTSPPacketCodec(c);
+        suite = c;
+        if (c.usesDTLS()) {
+            super.beginHandshake(destAddress);
+        } else {
+            // no DTLS handshake to wait for: tell the streaming server we are
+            // listening with an empty packet protected by the session suite
+            // (see SRTSP.mediaSuite)
+            setDTLS(false);
+            send(new DatagramPacket(new byte[0], 0, destAddress));
+        }
+        if (c.getFec() > 0) {
+            fecEncoder = new FecEncoder(c.getFec());
+            fecDecoder = new FecDecoder(c.getFec());
+        }
     }
 
     @Override
     public void send(DatagramPacket p) throws IOException {
+        send(p, 0);
+    }
 
-        byte[] payload = p.getData();
-
-        int payloadSize = p.getLength();
-        int macSize = hMac.getMacLength();
-
+    /*
+     * Sends p as the next packet of the stream, stamped with the media
+     * timestamp of its frame.
+     */
+    public void send(DatagramPacket p, long timestamp) throws IOException {
         try {
-            if(ivSpec==null)
-                cipher.init(Cipher.ENCRYPT_MODE, key);
-            else
-                cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-
-            byte[] cipherText = new byte[cipher.getOutputSize(payloadSize + macSize)];
-
-            int ctLength = cipher.update(payload, 0, payloadSize, cipherText, 0);
-
-            hMac.init(hMacKey);
-            hMac.update(payload, 0, payloadSize);
-
-            ctLength += cipher.doFinal(hMac.doFinal(), 0, hMac.getMacLength(), cipherText, ctLength);
-
-            byte[] packetData = ByteBuffer.allocate(HEADERSIZE+ctLength).put(VERSION).put(MESSAGE).putInt(payloadSize).put(cipherText).array();           
-            super.send(new DatagramPacket(packetData, packetData.length, p.getSocketAddress()));
+            int maxSize = codec.getPacketSize(p.getLength());
+            if (packetData.length < maxSize)
+                packetData = new byte[maxSize];
+            int packetSize = codec.protect(p.getData(), p.getOffset(), p.getLength(), packetData, 0,
+                    codec.nextSequence(), timestamp);
+            packet.setData(packetData, 0, packetSize);
+            packet.setSocketAddress(p.getSocketAddress());
+            super.send(packet);
+            if (fecEncoder != null && fecEncoder.add(packetData, 0, packetSize))
+                sendParity(p.getSocketAddress());
 
         }  catch (Exception e) {
             e.printStackTrace();
             throw new IOException();
-        }  
+        }
     }
 
-    @Override
-    public void receive(DatagramPacket p) throws IOException {
-        super.receive(p);
+    /*
+     * Sends the parity packet of an incomplete FEC group, at the end of the
+     * stream.
+     */
+    public void flush(SocketAddress destAddress) throws IOException {
+        if (fecEncoder != null && fecEncoder.hasPending())
+            sendParity(destAddress);
+    }
 
-        byte[] packetDataArray = p.getData();
-        ByteBuffer packetData = ByteBuffer.wrap(packetDataArray);
+    private void sendParity(SocketAddress destAddress) throws IOException {
+        if (packetData.length < fecEncoder.getParitySize())
+            packetData = new byte[fecEncoder.getParitySize()];
+        packet.setData(packetData, 0, fecEncoder.writeParity(packetData, 0));
+        packet.setSocketAddress(destAddress);
+        super.send(packet);
+    }
 
-        byte version = packetData.get();
-        byte messageType = packetData.get();
+    /*
+     * The next SRTSP payload into p. A packet that does not unprotect (forged,
+     * corrupted or a bad rebuild from FEC parity) is counted and dropped:
+     * without DTLS anyone can send to the socket, a bad packet must not end
+     * the stream.
+     */
+    @Override
+    public void receive(DatagramPacket p) throws IOException {
+        int length = p.getLength();
+        while (true) {
+            p.setLength(length);
+            receivePacket(p);
+            long seq = SRTSPPacketCodec.peekSequence(p.getData(), p.getOffset(), p.getLength());
+            try {
+                // decrypted in place, the payload is left at the start of the packet buffer
+                int payloadSize = codec.unprotect(p.getData(), p.getOffset(), p.getLength());
+                if (!window.mark(seq))
+                    continue;
+                p.setLength(payloadSize);
+                return;
+            } catch (GeneralSecurityException e) {
+                dropped++;
+            }
+        }
+    }
 
-        int payloadAndHMacSize = p.getLength()-HEADERSIZE;
-        int payloadSize = packetData.getInt();
+    // packets receive() dropped because they did not unprotect
+    public long getDropped() {
+        return dropped;
+    }
 
-        byte[] cipherText = new byte[payloadAndHMacSize];
-        packetData.get(cipherText);
+    /*
+     * First half of receive(): the next SRTSP packet into p, DTLS unwrapped
+     * but still SRTSP protected, with FEC parity consumed and replays of
+     * packets already marked dropped. Returns true if the packet was rebuilt
+     * from FEC parity.
+     *
+     * Lets other threads do the second half, each with its own codec from
+     * newCodec(): unprotect, then mark the sequence number in the (shared,
+     * lock-free) replay window.
+     */
+    public boolean receivePacket(DatagramPacket p) throws IOException {
+        int length = p.getLength();
+        while (true) {
+            // a packet rebuilt from FEC parity goes through the same checks
+            int recovered = fecDecoder == null ? -1 : fecDecoder.takeRecovered(p.getData(), p.getOffset(), length);
+            if (recovered >= 0) {
+                p.setLength(recovered);
+            } else {
+                p.setLength(length);
+                super.receive(p);
+                if (FecDecoder.isParity(p.getData(), p.getOffset(), p.getLength())) {
+                    if (fecDecoder != null)
+                        fecDecoder.addParity(p.getData(), p.getOffset(), p.getLength());
+                    continue;
+                }
+            }
 
-        try {
-            if(ivSpec==null)
-                cipher.init(Cipher.DECRYPT_MODE, key);
-            else
-                cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+            // replayed or too old: dropped before decrypting it
+            long seq = SRTSPPacketCodec.peekSequence(p.getData(), p.getOffset(), p.getLength());
+            if (seq >= 0 && !window.check(seq))
+                continue;
+            if (fecDecoder != null && recovered < 0 && seq >= 0)
+                fecDecoder.add(p.getData(), p.getOffset(), p.getLength(), seq);
+            return recovered >= 0;
+        }
+    }
 
-            byte[] plainText = cipher.doFinal(cipherText, 0, payloadAndHMacSize);
+    /*
+     * A codec for the movie suite of this socket, for unprotecting packets
+     * on another thread.
+     */
+    public SRTSPPacketCodec newCodec() throws GeneralSecurityException {
+        return new SRTSPPacketCodec(suite);
+    }
 
-            hMac.init(hMacKey);
-            hMac.update(plainText, 0, payloadSize);
+    public ReplayWindow getReplayWindow() {
+        return this.window;
+    }
 
-            byte[] payloadHash = new byte[hMac.getMacLength()];
-            System.arraycopy(plainText, payloadSize, payloadHash, 0, payloadHash.length);
+    // null without FEC
+    public FecDecoder getFecDecoder() {
+        return this.fecDecoder;
+    }
 
-            if(!MessageDigest.isEqual(hMac.doFinal(), payloadHash)){
-                throw new Exception();
-            }
-            else{
-                //p.setData(plainText, 0, payloadSize); // isto troca a referencia do array q tem la dentro pa uma referencia do plaintext
-                System.arraycopy(plainText, 0, packetDataArray, 0, payloadSize); // isto copia o valor das coisas po array q ja la ta
-                p.setLength(payloadSize);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IOException();
-        }       
+    // sequence number and media timestamp of the last packet received
+    public long getReceivedSequence() {
+        return codec.getReceivedSequence();
+    }
 
+    public long getReceivedTimestamp() {
+        return codec.getReceivedTimestamp();
     }
 }
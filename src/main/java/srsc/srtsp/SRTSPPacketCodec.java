@@ -0,0 +1,371 @@
+package srsc.srtsp;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import srsc.configEntities.Ciphersuite;
+
+/*
+ * SRTSP media packet protection for one movie ciphersuite, shared by the
+ * DatagramSocket and DatagramChannel transports.
+ *
+ * Header: VERSION | MESSAGE | payload size (int) | sequence (long) | timestamp (long)
+ *
+ * Cipher + HMAC suites: header | E(payload || HMAC(header || payload))
+ * AEAD suites (AES/GCM, ChaCha20-Poly1305, no integrity entry), one pass:
+ * header | AEAD(payload), with the header as associated data.
+ *
+ * The iv (nonce) of every packet is the suite iv with the sequence number
+ * xored into its first 8 bytes (the CTR block counter stays in the low bytes),
+ * so each packet can be protected and unprotected on its own, out of order or
+ * on another thread with its own codec. Stream ciphers without an iv (RC4)
+ * get a key per packet instead, HMAC-SHA256(suite key, sequence number), so
+ * no two packets share a keystream; ECB is refused, as it would show which
+ * blocks repeat. Sequence numbers start at a random value per codec, since
+ * the movie key is shared by every session.
+ *
+ * With the DTLS protection profile the packet is just header | payload: the
+ * DTLS records are the only protection and the suite keys are not used.
+ *
+ * Not thread safe: each transport (or worker) owns its codec.
+ */
+public class SRTSPPacketCodec {
+
+    public static final int HEADERSIZE = Byte.SIZE / 8 + Byte.SIZE / 8 + Integer.SIZE / 8 + Long.SIZE / 8
+            + Long.SIZE / 8;
+
+    static final byte VERSION = 0b00000101;
+    private static final byte MESSAGE = 0b00000000;
+
+    private static final int SEQUENCE_OFFSET = 6;
+    private static final int TAG_LENGTH = 16;
+
+    private final boolean clear; // DTLS profile, no SRTSP crypto
+    private SecretKeySpec key;
+    private Cipher cipher;
+    private boolean aead;
+    private boolean gcm;
+    private byte[] iv;
+    private byte[] nonce;
+    private Mac packetKeys; // no iv: HMAC-SHA256 keyed with the suite key
+    private byte[] packetKey;
+    private int packetKeyLength; // as long as the suite key, up to the 32 bytes of the HMAC
+    private final byte[] header = new byte[HEADERSIZE];
+
+    // cipher + HMAC
+    private Mac hMac;
+    private Key hMacKey;
+    private ByteBuffer mac;
+    private ByteBuffer plainText;
+
+    private long sequence;
+    private long receivedSequence, receivedTimestamp;
+
+    public SRTSPPacketCodec(Ciphersuite c) throws GeneralSecurityException {
+        sequence = new SecureRandom().nextLong() >>> 1;
+        clear = !c.usesSRTSP();
+        if (clear)
+            return;
+
+        key = new SecretKeySpec(c.getConfidentiality().getKey(), c.getConfidentiality().getKeySpec());
+        iv = c.getConfidentiality().getIv();
+        nonce = iv == null ? null : new byte[iv.length];
+        cipher = Cipher.getInstance(c.getConfidentiality().getSpec());
+        aead = c.getConfidentiality().isAEAD();
+        gcm = cipher.getAlgorithm().toUpperCase().contains("/GCM/");
+
+        if (iv != null && iv.length < Long.SIZE / 8)
+            throw new GeneralSecurityException("SRTSP suites need an iv of at least 8 bytes");
+        if (cipher.getBlockSize() > 0 && !cipher.getAlgorithm().contains("/")
+                || cipher.getAlgorithm().toUpperCase().contains("/ECB/"))
+            throw new GeneralSecurityException("SRTSP suites cannot use ECB: " + cipher.getAlgorithm());
+        if (iv == null) {
+            packetKeys = Mac.getInstance("HmacSHA256");
+            packetKeys.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            packetKey = new byte[packetKeys.getMacLength()];
+            packetKeyLength = Math.min(key.getEncoded().length, packetKey.length);
+        }
+        if (aead) {
+            if (iv == null)
+                throw new GeneralSecurityException("AEAD suite needs an iv");
+        } else {
+            hMac = Mac.getInstance(c.getIntegrity().getSpec());
+            hMacKey = new SecretKeySpec(c.getIntegrity().getKey(), c.getIntegrity().getKeySpec());
+            hMac.init(hMacKey);
+
+            mac = ByteBuffer.allocate(hMac.getMacLength());
+            plainText = ByteBuffer.allocate(4096);
+        }
+    }
+
+    /*
+     * Sequence number for the next packet sent through this codec.
+     */
+    public long nextSequence() {
+        return sequence++;
+    }
+
+    /*
+     * Sequence number and timestamp of the last packet unprotected.
+     */
+    public long getReceivedSequence() {
+        return this.receivedSequence;
+    }
+
+    public long getReceivedTimestamp() {
+        return this.receivedTimestamp;
+    }
+
+    /*
+     * Sequence number in the (still unauthenticated) header of a received
+     * packet, or -1 if it is not an SRTSP media packet. Lets a receiver drop
+     * replays before spending any crypto on them.
+     */
+    public static long peekSequence(byte[] packet, int off, int len) {
+        if (len < HEADERSIZE || packet[off] != VERSION || packet[off + 1] != MESSAGE)
+            return -1;
+        return getLong(packet, off + SEQUENCE_OFFSET, Long.SIZE / 8);
+    }
+
+    public static long peekSequence(ByteBuffer packet) {
+        int off = packet.position();
+        if (packet.remaining() < HEADERSIZE || packet.get(off) != VERSION || packet.get(off + 1) != MESSAGE)
+            return -1;
+        return packet.getLong(off + SEQUENCE_OFFSET);
+    }
+
+    /*
+     * Upper bound for the protected size of a payload, header included
+     * (a full block of padding at most).
+     */
+    public int getPacketSize(int payloadSize) {
+        if (clear)
+            return HEADERSIZE + payloadSize;
+        if (aead)
+            return HEADERSIZE + payloadSize + TAG_LENGTH;
+        return HEADERSIZE + payloadSize + hMac.getMacLength() + Math.max(cipher.getBlockSize(), 1);
+    }
+
+    /*
+     * Protects payload[off, off+len) into packet from packetOff, which must
+     * have getPacketSize(len) bytes available. Returns the packet length.
+     */
+    public int protect(byte[] payload, int off, int len, byte[] packet, int packetOff, long seq, long timestamp)
+            throws GeneralSecurityException {
+        putHeader(packet, packetOff, len, seq, timestamp);
+        if (clear) {
+            System.arraycopy(payload, off, packet, packetOff + HEADERSIZE, len);
+            return HEADERSIZE + len;
+        }
+        init(Cipher.ENCRYPT_MODE, seq);
+
+        if (aead) {
+            cipher.updateAAD(packet, packetOff, HEADERSIZE);
+            return HEADERSIZE + cipher.doFinal(payload, off, len, packet, packetOff + HEADERSIZE);
+        }
+
+        hMac.update(packet, packetOff, HEADERSIZE);
+        hMac.update(payload, off, len);
+        hMac.doFinal(mac.array(), 0);
+        int n = cipher.update(payload, off, len, packet, packetOff + HEADERSIZE);
+        n += cipher.doFinal(mac.array(), 0, mac.capacity(), packet, packetOff + HEADERSIZE + n);
+        return HEADERSIZE + n;
+    }
+
+    /*
+     * Decrypts and verifies packet[off, off+len) in place: the payload ends
+     * up at off. Returns the payload size.
+     */
+    public int unprotect(byte[] packet, int off, int len) throws GeneralSecurityException {
+        if (len < HEADERSIZE)
+            throw new GeneralSecurityException("Short SRTSP packet");
+        if (packet[off] != VERSION || packet[off + 1] != MESSAGE)
+            throw new GeneralSecurityException("Unexpected SRTSP packet");
+        int payloadSize = (int) getLong(packet, off + 2, Integer.SIZE / 8);
+        long seq = getLong(packet, off + SEQUENCE_OFFSET, Long.SIZE / 8);
+        long timestamp = getLong(packet, off + SEQUENCE_OFFSET + Long.SIZE / 8, Long.SIZE / 8);
+        int start = off + HEADERSIZE;
+
+        if (clear) {
+            if (payloadSize != len - HEADERSIZE)
+                throw new GeneralSecurityException("Bad SRTSP payload size");
+        } else if (aead) {
+            init(Cipher.DECRYPT_MODE, seq);
+            cipher.updateAAD(packet, off, HEADERSIZE);
+            if (cipher.doFinal(packet, start, len - HEADERSIZE, packet, start) != payloadSize)
+                throw new GeneralSecurityException("Bad SRTSP payload size");
+        } else {
+            init(Cipher.DECRYPT_MODE, seq);
+            int plainSize = cipher.doFinal(packet, start, len - HEADERSIZE, packet, start);
+            if (payloadSize < 0 || plainSize != payloadSize + mac.capacity())
+                throw new GeneralSecurityException("Bad SRTSP payload size");
+
+            hMac.update(packet, off, HEADERSIZE);
+            hMac.update(packet, start, payloadSize);
+            hMac.doFinal(mac.array(), 0);
+            if (!isEqual(mac.array(), packet, start + payloadSize))
+                throw new GeneralSecurityException("SRTSP integrity check failed");
+        }
+
+        System.arraycopy(packet, start, packet, off, payloadSize);
+        receivedSequence = seq;
+        receivedTimestamp = timestamp;
+        return payloadSize;
+    }
+
+    /*
+     * Protects the remaining bytes of payload into packet (from its position).
+     * Returns the packet length.
+     */
+    public int protect(ByteBuffer payload, ByteBuffer packet, long seq, long timestamp)
+            throws GeneralSecurityException {
+        int start = packet.position();
+        int payloadSize = payload.remaining();
+
+        packet.put(VERSION).put(MESSAGE).putInt(payloadSize).putLong(seq).putLong(timestamp);
+        if (clear) {
+            packet.put(payload);
+            return packet.position() - start;
+        }
+        packet.duplicate().position(start).get(header);
+        init(Cipher.ENCRYPT_MODE, seq);
+
+        if (aead) {
+            // array AAD: updateAAD(ByteBuffer) gives wrong ChaCha20-Poly1305 tags on JDK 17
+            cipher.updateAAD(header);
+            cipher.doFinal(payload, packet);
+            return packet.position() - start;
+        }
+
+        hMac.update(header);
+        hMac.update(payload.duplicate());
+        cipher.update(payload, packet);
+
+        mac.clear();
+        hMac.doFinal(mac.array(), 0);
+        cipher.doFinal(mac, packet);
+
+        return packet.position() - start;
+    }
+
+    /*
+     * Decrypts and verifies the remaining bytes of packet, writing the payload
+     * into payload (from its position). Returns the payload size.
+     */
+    public int unprotect(ByteBuffer packet, ByteBuffer payload) throws GeneralSecurityException {
+        int start = packet.position();
+        if (packet.remaining() < HEADERSIZE)
+            throw new GeneralSecurityException("Short SRTSP packet");
+
+        byte version = packet.get();
+        byte messageType = packet.get();
+        int payloadSize = packet.getInt();
+        long seq = packet.getLong();
+        long timestamp = packet.getLong();
+        if (version != VERSION || messageType != MESSAGE)
+            throw new GeneralSecurityException("Unexpected SRTSP packet");
+
+        if (clear) {
+            if (payloadSize != packet.remaining() || payload.remaining() < payloadSize)
+                throw new GeneralSecurityException("Bad SRTSP payload size");
+            payload.put(packet);
+            receivedSequence = seq;
+            receivedTimestamp = timestamp;
+            return payloadSize;
+        }
+
+        packet.duplicate().position(start).get(header);
+        init(Cipher.DECRYPT_MODE, seq);
+
+        if (aead) {
+            cipher.updateAAD(header);
+            if (payloadSize < 0 || packet.remaining() != payloadSize + TAG_LENGTH
+                    || payload.remaining() < payloadSize)
+                throw new GeneralSecurityException("Bad SRTSP payload size");
+            // nothing is written to payload unless the tag verifies
+            cipher.doFinal(packet, payload);
+        } else {
+            int plainSize = cipher.getOutputSize(packet.remaining());
+            if (plainText.capacity() < plainSize)
+                plainText = ByteBuffer.allocate(plainSize);
+            plainText.clear();
+            cipher.doFinal(packet, plainText);
+            plainText.flip();
+
+            if (payloadSize < 0 || plainText.remaining() != payloadSize + mac.capacity()
+                    || payload.remaining() < payloadSize)
+                throw new GeneralSecurityException("Bad SRTSP payload size");
+
+            hMac.update(header);
+            hMac.update(plainText.array(), 0, payloadSize);
+            hMac.doFinal(mac.array(), 0);
+            if (!isEqual(mac.array(), plainText.array(), payloadSize))
+                throw new GeneralSecurityException("SRTSP integrity check failed");
+
+            payload.put(plainText.array(), 0, payloadSize);
+        }
+
+        receivedSequence = seq;
+        receivedTimestamp = timestamp;
+        return payloadSize;
+    }
+
+    private static void putHeader(byte[] packet, int off, int payloadSize, long seq, long timestamp) {
+        packet[off] = VERSION;
+        packet[off + 1] = MESSAGE;
+        putLong(packet, off + 2, payloadSize, Integer.SIZE / 8);
+        putLong(packet, off + SEQUENCE_OFFSET, seq, Long.SIZE / 8);
+        putLong(packet, off + SEQUENCE_OFFSET + Long.SIZE / 8, timestamp, Long.SIZE / 8);
+    }
+
+    // big endian, like ByteBuffer
+    private static void putLong(byte[] b, int off, long v, int size) {
+        for (int i = size - 1; i >= 0; i--, v >>>= 8)
+            b[off + i] = (byte) v;
+    }
+
+    private static long getLong(byte[] b, int off, int size) {
+        long v = 0;
+        for (int i = 0; i < size; i++)
+            v = v << 8 | (b[off + i] & 0xff);
+        return size == Integer.SIZE / 8 ? (int) v : v;
+    }
+
+    // constant time, like MessageDigest.isEqual, without copying the received mac out
+    private static boolean isEqual(byte[] expected, byte[] b, int off) {
+        int diff = 0;
+        for (int i = 0; i < expected.length; i++)
+            diff |= expected[i] ^ b[off + i];
+        return diff == 0;
+    }
+
+    private void init(int mode, long seq) throws GeneralSecurityException {
+        if (iv == null) {
+            for (int i = 0; i < Long.SIZE / 8; i++)
+                packetKeys.update((byte) (seq >>> (56 - 8 * i)));
+            packetKeys.doFinal(packetKey, 0);
+            cipher.init(mode, new SecretKeySpec(packetKey, 0, packetKeyLength, key.getAlgorithm()));
+            return;
+        }
+
+        System.arraycopy(iv, 0, nonce, 0, iv.length);
+        for (int i = 0; i < Long.SIZE / 8; i++)
+            nonce[i] ^= (byte) (seq >>> (56 - 8 * i));
+
+        AlgorithmParameterSpec spec;
+        if (gcm)
+            spec = new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        else
+            spec = new IvParameterSpec(nonce);
+        cipher.init(mode, key, spec);
+    }
+}
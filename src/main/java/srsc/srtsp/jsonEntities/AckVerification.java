@@ -1,5 +1,10 @@
 package srsc.srtsp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class AckVerification {
     private int n2_, n3;
 
@@ -26,4 +31,10 @@ public class AckVerification {
     public void setN3(int n3) {
         this.n3 = n3;
     }
-}
\ No newline at end of file
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<AckVerification> ADAPTER = AdapterBuilder.of(AckVerification::new)
+            .integer("n2_", v -> v.n2_, (v, x) -> v.n2_ = x)
+            .integer("n3", v -> v.n3, (v, x) -> v.n3 = x)
+            .build();
+}
@@ -1,7 +1,12 @@
 package srsc.srtsp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class RequestAndCredentials {
-    private int n1;
+    private int n1, port;
     private TicketCredentials ticketCredentials;
 
     public RequestAndCredentials() {
@@ -12,6 +17,11 @@ public class RequestAndCredentials {
         this.n1 = n1;
     }
 
+    public RequestAndCredentials(TicketCredentials ticketCredentials, int n1, int port) {
+        this(ticketCredentials, n1);
+        this.port = port;
+    }
+
     public int getN1() {
         return this.n1;
     }
@@ -27,4 +37,20 @@ public class RequestAndCredentials {
     public void setTicketCredentials(TicketCredentials ticketCredentials) {
         this.ticketCredentials = ticketCredentials;
     }
-}
\ No newline at end of file
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<RequestAndCredentials> ADAPTER = AdapterBuilder.of(RequestAndCredentials::new)
+            .integer("n1", v -> v.n1, (v, x) -> v.n1 = x)
+            .integer("port", v -> v.port, (v, x) -> v.port = x)
+            .object("ticketCredentials", TicketCredentials.ADAPTER, v -> v.ticketCredentials,
+                    (v, x) -> v.ticketCredentials = x)
+            .build();
+}
@@ -1,7 +1,12 @@
 package srsc.srtsp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class RequestAndCredentialsSend {
-    private int n1;
+    private int n1, port;
     private byte[] ticketCredentials, signature;
 
     public RequestAndCredentialsSend() {
@@ -13,6 +18,11 @@ public class RequestAndCredentialsSend {
         this.n1 = n1;
     }
 
+    public RequestAndCredentialsSend(byte[] ticketCredentials, byte[] signature, int n1, int port) {
+        this(ticketCredentials, signature, n1);
+        this.port = port;
+    }
+
     public byte[] getTicketCredentials() {
         return this.ticketCredentials;
     }
@@ -36,4 +46,21 @@ public class RequestAndCredentialsSend {
     public void setN1(int n1) {
         this.n1 = n1;
     }
-}
\ No newline at end of file
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<RequestAndCredentialsSend> ADAPTER = AdapterBuilder
+            .of(RequestAndCredentialsSend::new)
+            .integer("n1", v -> v.n1, (v, x) -> v.n1 = x)
+            .integer("port", v -> v.port, (v, x) -> v.port = x)
+            .bytes("ticketCredentials", v -> v.ticketCredentials, (v, x) -> v.ticketCredentials = x)
+            .bytes("signature", v -> v.signature, (v, x) -> v.signature = x)
+            .build();
+}
@@ -1,15 +1,22 @@
 package srsc.srtsp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class SyncInitialFrame {
     private int n3_;
     private byte[] frame;
+    private int port;
 
     public SyncInitialFrame() {
     }
 
-    public SyncInitialFrame(int n3_, byte[] frame) {
+    public SyncInitialFrame(int n3_, byte[] frame, int port) {
         this.n3_ = n3_;
         this.frame = frame;
+        this.port = port;
     }
 
     public int getN3_() {
@@ -27,4 +34,19 @@ public class SyncInitialFrame {
     public void setframe(byte[] frame) {
         this.frame = frame;
     }
-}
\ No newline at end of file
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<SyncInitialFrame> ADAPTER = AdapterBuilder.of(SyncInitialFrame::new)
+            .integer("n3_", v -> v.n3_, (v, x) -> v.n3_ = x)
+            .bytes("frame", v -> v.frame, (v, x) -> v.frame = x)
+            .integer("port", v -> v.port, (v, x) -> v.port = x)
+            .build();
+}
@@ -1,5 +1,9 @@
 package srsc.srtsp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
 import srsc.configEntities.Ciphersuite;
 
 public class TicketCredentials {
@@ -7,6 +11,7 @@ public class TicketCredentials {
     private Ciphersuite ciphersuiteConf;
     private int n4_;
     private byte[] sessionIV, sessionKey, macKey;
+    private long issued; // ms since the epoch, when the signaling server made the ticket
 
     public TicketCredentials() {
     }
@@ -86,5 +91,25 @@ public class TicketCredentials {
     public void setMacKey(byte[] macKey) {
         this.macKey = macKey;
     }
-    
-}
\ No newline at end of file
+
+    public long getIssued() {
+        return this.issued;
+    }
+
+    public void setIssued(long issued) {
+        this.issued = issued;
+    }
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<TicketCredentials> ADAPTER = AdapterBuilder.of(TicketCredentials::new)
+            .string("ip", v -> v.ip, (v, x) -> v.ip = x)
+            .string("port", v -> v.port, (v, x) -> v.port = x)
+            .string("movieId", v -> v.movieId, (v, x) -> v.movieId = x)
+            .object("ciphersuiteConf", Ciphersuite.ADAPTER, v -> v.ciphersuiteConf, (v, x) -> v.ciphersuiteConf = x)
+            .integer("n4_", v -> v.n4_, (v, x) -> v.n4_ = x)
+            .bytes("sessionIV", v -> v.sessionIV, (v, x) -> v.sessionIV = x)
+            .bytes("sessionKey", v -> v.sessionKey, (v, x) -> v.sessionKey = x)
+            .bytes("macKey", v -> v.macKey, (v, x) -> v.macKey = x)
+            .longValue("issued", v -> v.issued, (v, x) -> v.issued = x)
+            .build();
+}
@@ -1,5 +1,10 @@
 package srsc.srtsp.jsonEntities;
 
+import com.google.gson.TypeAdapter;
+
+import srsc.AdapterBuilder;
+import srsc.JsonCodec;
+
 public class Verification {
     private int n1_, n2;
     private boolean ticketValidityConfirmation;
@@ -36,4 +41,12 @@ public class Verification {
     public void setTicketValidityConfirmation(boolean ticketValidityConfirmation) {
         this.ticketValidityConfirmation = ticketValidityConfirmation;
     }
-}
\ No newline at end of file
+
+    // reflection free JSON, see JsonCodec
+    public static final TypeAdapter<Verification> ADAPTER = AdapterBuilder.of(Verification::new)
+            .integer("n1_", v -> v.n1_, (v, x) -> v.n1_ = x)
+            .integer("n2", v -> v.n2, (v, x) -> v.n2 = x)
+            .bool("ticketValidityConfirmation", v -> v.ticketValidityConfirmation,
+                    (v, x) -> v.ticketValidityConfirmation = x)
+            .build();
+}
@@ -0,0 +1,53 @@
+package srsc.streaming;
+
+/*
+ * Pacing accuracy of one session: actual send time minus scheduled send
+ * time, in nanoseconds.
+ */
+public class DriftStats {
+
+    private long count;
+    private long sum;
+    private long max = Long.MIN_VALUE;
+    private long min = Long.MAX_VALUE;
+    private long late; // sends more than LATE_NANOS after their deadline
+
+    private static final long LATE_NANOS = 1000000;
+
+    public synchronized void record(long drift) {
+        count++;
+        sum += drift;
+        if (drift > max)
+            max = drift;
+        if (drift < min)
+            min = drift;
+        if (drift > LATE_NANOS)
+            late++;
+    }
+
+    public synchronized long getCount() {
+        return this.count;
+    }
+
+    public synchronized long getMeanNanos() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public synchronized long getMaxNanos() {
+        return count == 0 ? 0 : max;
+    }
+
+    public synchronized long getMinNanos() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getLate() {
+        return this.late;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("drift mean %d us, min %d us, max %d us, %d/%d over 1 ms", getMeanNanos() / 1000,
+                getMinNanos() / 1000, getMaxNanos() / 1000, late, count);
+    }
+}
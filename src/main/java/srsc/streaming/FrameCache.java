@@ -0,0 +1,124 @@
+package srsc.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Process-wide LRU cache of movie frames kept in direct memory, keyed by
+ * movie id and frame number and bounded by a byte budget. Sessions watching
+ * the same title read the copies held here instead of going back to the
+ * movie mapping.
+ *
+ * Evicted buffers are not recycled: a session may still be sending from a
+ * view it got earlier, so they are left to the GC once nobody holds them.
+ */
+public class FrameCache {
+
+    private static final class Key {
+        private final String movieId;
+        private final int frame;
+
+        Key(String movieId, int frame) {
+            this.movieId = movieId;
+            this.frame = frame;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return frame == k.frame && movieId.equals(k.movieId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * movieId.hashCode() + frame;
+        }
+    }
+
+    private final long budget;
+    private final LinkedHashMap<Key, ByteBuffer> frames = new LinkedHashMap<>(1024, 0.75f, true);
+    private long used;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FrameCache(long budget) {
+        this.budget = budget;
+    }
+
+    /*
+     * A read-only view of the frame, served from the cache or loaded into it
+     * from the movie. With a zero budget the mapping is read directly.
+     */
+    public ByteBuffer get(MovieFile movie, int frame) {
+        if (budget <= 0)
+            return movie.getFrame(frame);
+
+        Key key = new Key(movie.getMovieId(), frame);
+        ByteBuffer cached;
+        synchronized (this) {
+            cached = frames.get(key);
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.duplicate();
+        }
+
+        misses.incrementAndGet();
+        ByteBuffer source = movie.getFrame(frame);
+        if (source.remaining() > budget)
+            return source;
+
+        ByteBuffer copy = ByteBuffer.allocateDirect(source.remaining());
+        copy.put(source).flip();
+        copy = copy.asReadOnlyBuffer();
+
+        synchronized (this) {
+            ByteBuffer previous = frames.putIfAbsent(key, copy);
+            if (previous != null) // loaded concurrently by another session
+                return previous.duplicate();
+            used += copy.capacity();
+            Iterator<Map.Entry<Key, ByteBuffer>> eldest = frames.entrySet().iterator();
+            while (used > budget && eldest.hasNext()) {
+                ByteBuffer evicted = eldest.next().getValue();
+                eldest.remove();
+                used -= evicted.capacity();
+                evictions.incrementAndGet();
+            }
+        }
+        return copy.duplicate();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public synchronized long getUsedBytes() {
+        return this.used;
+    }
+
+    public synchronized int getSize() {
+        return this.frames.size();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.get(), m = misses.get();
+        return String.format("FrameCache: %d frames, %d/%d bytes, hits %d, misses %d (%.1f%% hit), evictions %d",
+                getSize(), getUsedBytes(), budget, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions.get());
+    }
+}
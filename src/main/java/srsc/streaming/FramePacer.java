@@ -0,0 +1,134 @@
+package srsc.streaming;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Shared frame pacing for every streaming session.
+ *
+ * Sessions do not own a sleeping thread: each one is a PacedTask kept in a
+ * deadline-ordered queue and a few pacer threads fire whichever task is due
+ * next. Waiting is a timed park until SPIN_NANOS before the deadline and a
+ * busy spin for the rest, which keeps sends well under a millisecond from
+ * their schedule. The lateness of every send is recorded in the session's
+ * DriftStats, once per deadline: a task that is not ready (RETRY) runs
+ * again RETRY_NANOS later for the same deadline, and what is recorded is
+ * how late it finally went out.
+ */
+public class FramePacer {
+
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    public interface PacedTask {
+        long RETRY = -2;
+
+        /*
+         * Does the work scheduled for the given deadline and returns the
+         * deadline (System.nanoTime based) of the next run, -1 when done, or
+         * RETRY if the work is not ready yet.
+         */
+        long fire(long deadline);
+    }
+
+    private static final class Scheduled implements Comparable<Scheduled> {
+        private final PacedTask task;
+        private final DriftStats drift;
+        private long deadline;
+        private long wakeAt; // the deadline, or later while retrying
+
+        Scheduled(PacedTask task, DriftStats drift, long deadline) {
+            this.task = task;
+            this.drift = drift;
+            this.deadline = deadline;
+            this.wakeAt = deadline;
+        }
+
+        @Override
+        public int compareTo(Scheduled o) {
+            return Long.compare(wakeAt, o.wakeAt);
+        }
+    }
+
+    private final PriorityQueue<Scheduled> queue = new PriorityQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public FramePacer(int threads) {
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, "pacer-" + i);
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            t.start();
+        }
+    }
+
+    public void schedule(PacedTask task, long deadline, DriftStats drift) {
+        offer(new Scheduled(task, drift, deadline));
+    }
+
+    private void offer(Scheduled s) {
+        lock.lock();
+        try {
+            queue.add(s);
+            if (queue.peek() == s) // new earliest deadline, wake a waiting pacer
+                changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Scheduled next;
+            lock.lock();
+            try {
+                while (true) {
+                    next = queue.peek();
+                    if (next == null) {
+                        changed.awaitUninterruptibly();
+                        continue;
+                    }
+                    long wait = next.wakeAt - System.nanoTime();
+                    if (wait > SPIN_NANOS) {
+                        changed.awaitNanos(wait - SPIN_NANOS);
+                        continue;
+                    }
+                    queue.poll();
+                    if (!queue.isEmpty()) // let another pacer take the following deadline
+                        changed.signal();
+                    break;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            long now;
+            while ((now = System.nanoTime()) < next.wakeAt)
+                Thread.onSpinWait();
+
+            long following;
+            try {
+                following = next.task.fire(next.deadline);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                following = -1;
+            }
+            if (following == PacedTask.RETRY) {
+                next.wakeAt = now + RETRY_NANOS;
+                offer(next);
+                continue;
+            }
+            next.drift.record(now - next.deadline);
+            if (following >= 0) {
+                next.deadline = following;
+                next.wakeAt = following;
+                offer(next);
+            }
+        }
+    }
+}
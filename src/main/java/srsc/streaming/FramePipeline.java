@@ -0,0 +1,173 @@
+package srsc.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import srsc.srtsp.SRTSPDatagramChannel;
+import srsc.srtsp.SRTSPPacketCodec;
+
+/*
+ * Prepares the frames of one session ahead of their send deadline.
+ *
+ * A ring of slots holds the next frames. Each one is SRTSP protected on the
+ * crypto pool (in parallel, with a codec borrowed from this session and the
+ * sequence number given when it was queued), then DTLS wrapped strictly in
+ * frame order by whichever worker completes the next one in line. The pacer
+ * only takes the ready record at the tail of the ring and sends it (and the
+ * FEC parity record wrapped with it, when it completed a group).
+ *
+ * fill(), poll() and release() are called by the session, one thread at a
+ * time (the pacer hands the session from one fire() to the next).
+ */
+public class FramePipeline {
+
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final int FREE = 0, QUEUED = 1, PROTECTED = 2, READY = 3, FAILED = 4;
+
+    private static final class Slot {
+        final ByteBuffer packet;
+        final ByteBuffer record;
+        final ByteBuffer parity; // null without FEC
+        boolean withParity;
+        volatile int state = FREE;
+
+        Slot(int packetSize, int recordSize, boolean fec) {
+            packet = ByteBuffer.allocateDirect(packetSize);
+            record = ByteBuffer.allocateDirect(recordSize);
+            parity = fec ? ByteBuffer.allocateDirect(recordSize) : null;
+        }
+    }
+
+    private final MovieFile movie;
+    private final FrameCache cache;
+    private final SRTSPDatagramChannel channel;
+    private final Executor pool;
+    private final Slot[] ring;
+    private final ConcurrentLinkedQueue<SRTSPPacketCodec> codecs = new ConcurrentLinkedQueue<>();
+
+    private int next; // next frame to queue
+    private long head, tail; // slots queued, slots sent
+    private volatile long wrapped; // slots wrapped, advanced only while holding wrapping
+    private final AtomicBoolean wrapping = new AtomicBoolean();
+
+    public FramePipeline(MovieFile movie, FrameCache cache, SRTSPDatagramChannel channel, Executor pool, int depth) {
+        this.movie = movie;
+        this.cache = cache;
+        this.channel = channel;
+        this.pool = pool;
+
+        int maxFrame = 0;
+        for (int i = 0; i < movie.getFrameCount(); i++)
+            maxFrame = Math.max(maxFrame, movie.getFrameSize(i));
+        ring = new Slot[depth];
+        for (int i = 0; i < depth; i++)
+            ring[i] = new Slot(channel.getPacketSize(maxFrame), channel.getRecordSize(), channel.usesFec());
+    }
+
+    /*
+     * Queues the following frames while there are free slots.
+     */
+    public void fill() {
+        while (next < movie.getFrameCount() && head - tail < ring.length) {
+            Slot slot = ring[(int) (head++ % ring.length)];
+            int frame = next++;
+            long seq = channel.nextSequence();
+            slot.state = QUEUED;
+            pool.execute(() -> protect(slot, frame, seq));
+        }
+    }
+
+    /*
+     * The record of the next frame, ready to send, or null if it is still
+     * being prepared. Throws if preparing it failed.
+     */
+    public ByteBuffer poll() throws Exception {
+        Slot slot = ring[(int) (tail % ring.length)];
+        int state = slot.state;
+        if (state == FAILED)
+            throw new Exception("Frame " + (next - (head - tail)) + " could not be protected");
+        return state == READY ? slot.record : null;
+    }
+
+    /*
+     * The FEC parity record to send after the record from poll(), or null.
+     */
+    public ByteBuffer pollParity() {
+        Slot slot = ring[(int) (tail % ring.length)];
+        return slot.state == READY && slot.withParity ? slot.parity : null;
+    }
+
+    /*
+     * Blocks until the next record is ready (or failed), so streaming starts
+     * with the first frame prepared rather than with warm up stalls.
+     */
+    public void awaitReady() {
+        Slot slot = ring[(int) (tail % ring.length)];
+        while (tail < head && slot.state != READY && slot.state != FAILED)
+            LockSupport.parkNanos(WAIT_NANOS);
+    }
+
+    /*
+     * Frees the slot of the record just sent and queues more frames.
+     */
+    public void release() {
+        ring[(int) (tail++ % ring.length)].state = FREE;
+        fill();
+    }
+
+    private void protect(Slot slot, int frame, long seq) {
+        SRTSPPacketCodec codec = codecs.poll();
+        try {
+            if (codec == null)
+                codec = channel.newCodec();
+            slot.packet.clear();
+            codec.protect(cache.get(movie, frame), slot.packet, seq, movie.getTimestamp(frame));
+            slot.packet.flip();
+            slot.state = PROTECTED;
+        } catch (Exception e) {
+            e.printStackTrace();
+            slot.state = FAILED;
+            return;
+        } finally {
+            if (codec != null)
+                codecs.offer(codec);
+        }
+        wrapReady();
+    }
+
+    // DTLS records must be produced in sequence order: whoever gets the flag
+    // wraps every protected slot in line, then checks again after letting go
+    // in case a slot was protected in between
+    private void wrapReady() {
+        while (wrapping.compareAndSet(false, true)) {
+            try {
+                Slot slot;
+                while ((slot = ring[(int) (wrapped % ring.length)]).state == PROTECTED) {
+                    try {
+                        slot.record.clear();
+                        if (slot.parity != null)
+                            slot.parity.clear();
+                        slot.withParity = channel.wrap(slot.packet, slot.record, slot.parity);
+                        slot.record.flip();
+                        if (slot.withParity)
+                            slot.parity.flip();
+                        slot.state = READY;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        slot.state = FAILED;
+                    }
+                    wrapped++;
+                }
+            } finally {
+                wrapping.set(false);
+            }
+            if (ring[(int) (wrapped % ring.length)].state != PROTECTED)
+                return;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package srsc.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Read-only, memory-mapped view of a movie (.dat) file.
+ *
+ * The .dat format is a sequence of frames: short size, long timestamp (ns)
+ * and size bytes of payload. The first open scans the mapping once and
+ * stores frame offsets, sizes and timestamps in a sidecar <movie>.dat.idx,
+ * so later opens (and restarts) only read the index. One MovieFile is shared
+ * by every session streaming the same movie.
+ */
+public class MovieFile {
+
+    private static final String MOVIES_DIR = "./src/main/resources/movies/";
+
+    private static final int INDEX_MAGIC = 0x53494458; // "SIDX"
+    private static final int INDEX_VERSION = 1;
+    private static final int FRAME_HEADERSIZE = Short.SIZE / 8 + Long.SIZE / 8;
+
+    private static final Map<String, MovieFile> opened = new ConcurrentHashMap<>();
+
+    private final String movieId;
+    private final MappedByteBuffer data;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final long[] timestamps;
+    private final ByteBuffer[] frames;
+
+    private MovieFile(String movieId, MappedByteBuffer data, int[] offsets, int[] sizes, long[] timestamps) {
+        this.movieId = movieId;
+        this.data = data;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.timestamps = timestamps;
+        this.frames = new ByteBuffer[offsets.length];
+        for (int i = 0; i < frames.length; i++) {
+            ByteBuffer frame = data.duplicate();
+            frame.position(offsets[i]).limit(offsets[i] + sizes[i]);
+            frames[i] = frame.slice();
+        }
+    }
+
+    /*
+     * Returns the shared mapping of a movie, mapping and indexing it on first use.
+     */
+    public static MovieFile open(String movieId) throws IOException {
+        try {
+            return opened.computeIfAbsent(movieId, id -> {
+                try {
+                    return map(id);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static MovieFile map(String movieId) throws IOException {
+        File movie = new File(MOVIES_DIR + movieId + ".dat");
+        File index = new File(MOVIES_DIR + movieId + ".dat.idx");
+
+        MappedByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(movie, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Movie too large to map: " + movie);
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        MovieFile movieFile = loadIndex(movieId, data, index, movie.length(), movie.lastModified());
+        if (movieFile == null) {
+            movieFile = buildIndex(movieId, data);
+            try {
+                movieFile.saveIndex(index, movie.length(), movie.lastModified());
+            } catch (IOException e) {
+                System.err.println("Could not write frame index " + index + ": " + e.getMessage());
+            }
+        }
+        return movieFile;
+    }
+
+    private static MovieFile buildIndex(String movieId, MappedByteBuffer data) {
+        int capacity = 1024;
+        int[] offsets = new int[capacity];
+        int[] sizes = new int[capacity];
+        long[] timestamps = new long[capacity];
+        int count = 0;
+
+        int pos = 0;
+        int limit = data.limit();
+        while (limit - pos >= FRAME_HEADERSIZE) {
+            int size = data.getShort(pos) & 0xffff;
+            long time = data.getLong(pos + Short.SIZE / 8);
+            if (pos + FRAME_HEADERSIZE + size > limit)
+                break; // truncated last frame
+            if (count == capacity) {
+                capacity *= 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+            }
+            offsets[count] = pos + FRAME_HEADERSIZE;
+            sizes[count] = size;
+            timestamps[count] = time;
+            count++;
+            pos += FRAME_HEADERSIZE + size;
+        }
+
+        return new MovieFile(movieId, data, Arrays.copyOf(offsets, count), Arrays.copyOf(sizes, count),
+                Arrays.copyOf(timestamps, count));
+    }
+
+    private static MovieFile loadIndex(String movieId, MappedByteBuffer data, File index, long length,
+            long lastModified) {
+        if (!index.exists())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readLong() != length
+                    || in.readLong() != lastModified)
+                return null; // stale index, the movie changed
+
+            int count = in.readInt();
+            int[] offsets = new int[count];
+            int[] sizes = new int[count];
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readInt();
+                sizes[i] = in.readInt();
+                timestamps[i] = in.readLong();
+                if (offsets[i] < 0 || sizes[i] < 0 || (long) offsets[i] + sizes[i] > data.limit())
+                    return null;
+            }
+            return new MovieFile(movieId, data, offsets, sizes, timestamps);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void saveIndex(File index, long length, long lastModified) throws IOException {
+        File tmp = new File(index.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeInt(offsets[i]);
+                out.writeInt(sizes[i]);
+                out.writeLong(timestamps[i]);
+            }
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getMovieId() {
+        return this.movieId;
+    }
+
+    public int getFrameCount() {
+        return this.frames.length;
+    }
+
+    public long getTimestamp(int frame) {
+        return this.timestamps[frame];
+    }
+
+    public int getFrameSize(int frame) {
+        return this.sizes[frame];
+    }
+
+    /*
+     * The frame payload as a read-only view of the mapping; callers get their
+     * own position/limit, the bytes themselves are never copied.
+     */
+    public ByteBuffer getFrame(int frame) {
+        return this.frames[frame].duplicate();
+    }
+
+    public long getLength() {
+        return this.data.capacity();
+    }
+}
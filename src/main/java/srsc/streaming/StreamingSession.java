@@ -0,0 +1,207 @@
+package srsc.streaming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import srsc.srtsp.SRTSPDatagramChannel;
+import srsc.srtsp.jsonEntities.TicketCredentials;
+
+/*
+ * One viewer: a redeemed ticket streamed over its own SRTSPDatagramChannel,
+ * with its own pacing reference, reading frames from the shared MovieFile
+ * through the process-wide FrameCache.
+ *
+ * The media channel is bound by the StreamingServer before the port is
+ * announced. run() does the blocking setup (DTLS handshake) on the StreamingServer pool
+ * and then hands the session to the shared FramePacer, which calls fire()
+ * at each frame's deadline. The session hands its port back through onClose
+ * when done.
+ *
+ * With a crypto pool, frames are protected and wrapped ahead of time by a
+ * FramePipeline and fire() only sends the ready datagram. If it is not ready
+ * at the deadline the send is retried shortly after and counted as a stall.
+ */
+public class StreamingSession implements Runnable, FramePacer.PacedTask {
+
+    public enum State {
+        CREATED, SETUP, STREAMING, DONE, FAILED
+    }
+
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final ByteBuffer END_OF_TRANSMISSION = ByteBuffer.wrap(new byte[] { 0x04 }).asReadOnlyBuffer(); // eot ascii character
+
+    private final int id;
+    private final TicketCredentials tc;
+    private final InetSocketAddress clientAddress;
+    private final DatagramChannel channel;
+    private final String keystore, keystorePassword, truststore, truststorePassword, dtlsConf;
+    private final FrameCache cache;
+    private final FramePacer pacer;
+    private final Executor cryptoPool;
+    private final int pipelineDepth;
+    private final int setupTimeout; // ms for the DTLS handshake or the ready packet
+    private final Runnable onClose;
+
+    private volatile State state = State.CREATED;
+    private final long createdAt;
+    private long setupAt, streamingAt, closedAt;
+    private int frames;
+    private long bytes;
+    private int stalls;
+    private final DriftStats drift = new DriftStats();
+
+    private SRTSPDatagramChannel s;
+    private MovieFile movie;
+    private FramePipeline pipeline;
+    private long t0; // tempo de referencia para este processo
+    private long q0; // tempo de referencia no stream
+
+    public StreamingSession(int id, TicketCredentials tc, InetSocketAddress clientAddress,
+            DatagramChannel channel, String keystore, String keystorePassword, String truststore,
+            String truststorePassword, String dtlsConf, FrameCache cache, FramePacer pacer, Executor cryptoPool,
+            int pipelineDepth, int setupTimeout, Runnable onClose) {
+        this.id = id;
+        this.tc = tc;
+        this.clientAddress = clientAddress;
+        this.channel = channel;
+        this.keystore = keystore;
+        this.keystorePassword = keystorePassword;
+        this.truststore = truststore;
+        this.truststorePassword = truststorePassword;
+        this.dtlsConf = dtlsConf;
+        this.cache = cache;
+        this.pacer = pacer;
+        this.cryptoPool = cryptoPool;
+        this.pipelineDepth = pipelineDepth;
+        this.setupTimeout = setupTimeout;
+        this.onClose = onClose;
+        this.createdAt = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        active.incrementAndGet();
+        state = State.SETUP;
+        setupAt = System.nanoTime();
+
+        try {
+            s = new SRTSPDatagramChannel(tc.getCiphersuiteConf(), true, keystore, keystorePassword, truststore,
+                    truststorePassword, dtlsConf, clientAddress, channel, setupTimeout);
+            movie = MovieFile.open(tc.getMovieId());
+            if (cryptoPool != null) {
+                pipeline = new FramePipeline(movie, cache, s, cryptoPool, pipelineDepth);
+                pipeline.fill();
+                pipeline.awaitReady();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            close(State.FAILED);
+            return;
+        }
+
+        state = State.STREAMING;
+        streamingAt = System.nanoTime();
+        t0 = streamingAt;
+        q0 = movie.getFrameCount() > 0 ? movie.getTimestamp(0) : 0;
+        pacer.schedule(this, t0, drift);
+    }
+
+    /*
+     * Sends the frame due at this deadline (or the end of transmission mark
+     * after the last one) and returns the next frame's deadline.
+     */
+    @Override
+    public long fire(long deadline) {
+        try {
+            if (frames < movie.getFrameCount()) {
+                int size = movie.getFrameSize(frames);
+                if (pipeline == null) {
+                    s.send(cache.get(movie, frames), movie.getTimestamp(frames)); // encrypted straight out of the cached buffer
+                } else {
+                    ByteBuffer record = pipeline.poll();
+                    if (record == null) { // crypto pool behind
+                        stalls++;
+                        return RETRY; // same deadline, the lateness counts from it
+                    }
+                    s.sendRecord(record);
+                    ByteBuffer parity = pipeline.pollParity();
+                    if (parity != null)
+                        s.sendRecord(parity);
+                    pipeline.release();
+                }
+                frames += 1;
+                bytes += size;
+
+                if (frames < movie.getFrameCount())
+                    return t0 + (movie.getTimestamp(frames) - q0);
+                return deadline;
+            }
+
+            s.send(END_OF_TRANSMISSION.duplicate(), frames > 0 ? movie.getTimestamp(frames - 1) : 0);
+            s.flush(); // parity of the last group, so a lost end of transmission can be rebuilt
+            close(State.DONE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            close(State.FAILED);
+        }
+        return -1;
+    }
+
+    private void close(State end) {
+        state = end;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closedAt = System.nanoTime();
+        active.decrementAndGet();
+        onClose.run();
+        System.out.println(this);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public int getFrames() {
+        return this.frames;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public int getStalls() {
+        return this.stalls;
+    }
+
+    public DriftStats getDrift() {
+        return this.drift;
+    }
+
+    public static int getActiveSessions() {
+        return active.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Session %d [%s -> %s] %s: %d frames, %d bytes, queued %d ms, setup %d ms, streamed %d ms, %s, %d stalls (%d active)",
+                id, tc.getMovieId(), clientAddress, state, frames, bytes, millis(createdAt, setupAt),
+                millis(setupAt, streamingAt), millis(streamingAt, closedAt), drift, stalls, active.get());
+    }
+
+    private static long millis(long from, long to) {
+        return from == 0 || to == 0 ? 0 : (to - from) / 1000000;
+    }
+}
@@ -0,0 +1,90 @@
+package srsc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+
+/*
+ * Bytes on the wire and encode/decode time per message of the two
+ * ControlChannel framings, hex lines vs binary frames. Not a unit test, run
+ * it by hand:
+ *
+ *   mvn -B test-compile
+ *   java -cp target/classes:target/test-classes srsc.ControlChannelBenchmark [messages]
+ *
+ * The sizes are those of SADKDP messages 2, 4, 5 and 6 of a purchase.
+ */
+public class ControlChannelBenchmark {
+
+    private static final int[] SIZES = { 78, 482, 3971, 6708 };
+    private static final byte VERSION = 0x02;
+
+    // a Socket over in-memory streams, enough for ControlChannel
+    private static final class MemorySocket extends Socket {
+        private final InputStream in;
+        private final OutputStream out;
+
+        MemorySocket(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        System.out.printf("%8s %8s %12s %12s %12s %12s%n", "message", "framing", "wire B", "encode us",
+                "decode us", "wire vs hex");
+        for (int size : SIZES) {
+            byte[] message = new byte[size];
+            new Random(size).nextBytes(message);
+            long[] hex = null, binary = null;
+            for (int round = 0; round < 3; round++) { // the first two warm up
+                hex = run(message, messages, false);
+                binary = run(message, messages, true);
+            }
+            print(size, "hex", hex, messages, 1);
+            print(size, "binary", binary, messages, (double) hex[0] / binary[0]);
+        }
+    }
+
+    // { wire bytes per message, encode ns, decode ns } for messages copies of message
+    private static long[] run(byte[] message, int messages, boolean binary) throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ControlChannel client = new ControlChannel(new MemorySocket(new ByteArrayInputStream(new byte[0]), wire),
+                VERSION, binary);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            client.write(message);
+        long t1 = System.nanoTime();
+
+        byte[] bytes = wire.toByteArray();
+        ControlChannel server = new ControlChannel(new MemorySocket(new ByteArrayInputStream(bytes),
+                new ByteArrayOutputStream()), VERSION);
+        long sink = 0;
+        long t2 = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            sink += server.read().length;
+        long t3 = System.nanoTime();
+        if (sink != (long) messages * message.length || server.read() != null)
+            throw new Exception("Framing lost messages");
+        return new long[] { bytes.length / messages, t1 - t0, t3 - t2 };
+    }
+
+    private static void print(int size, String framing, long[] r, int messages, double ratio) {
+        System.out.printf("%8d %8s %12d %12.2f %12.2f %12.1f%n", size, framing, r[0], r[1] / 1e3 / messages,
+                r[2] / 1e3 / messages, ratio);
+    }
+}
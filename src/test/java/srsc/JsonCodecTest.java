@@ -0,0 +1,116 @@
+package srsc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+
+import srsc.configEntities.*;
+
+/*
+ * The hand written adapters of JsonCodec against reflective Gson, for every
+ * entity: the same JSON out, and what reflective Gson writes reads back the
+ * same.
+ */
+class JsonCodecTest {
+
+    private static final Gson REFLECTIVE = new Gson();
+
+    private static final List<Class<?>> ENTITIES = List.of(
+            CipherMovie.class,
+            Ciphersuite.class,
+            Coin.class,
+            CoinWithIntegrity.class,
+            Confidentiality.class,
+            Integrity.class,
+            IssuedCoin.class,
+            ProxySessionConf.class,
+            SignedCoin.class,
+            TLSconfig.class,
+            UserProxy.class,
+            srsc.sadkdp.jsonEntities.Authentication.class,
+            srsc.sadkdp.jsonEntities.AuthenticationRequest.class,
+            srsc.sadkdp.jsonEntities.ErrorAlert.class,
+            srsc.sadkdp.jsonEntities.Hello.class,
+            srsc.sadkdp.jsonEntities.Payment.class,
+            srsc.sadkdp.jsonEntities.PaymentRequest.class,
+            srsc.sadkdp.jsonEntities.SignatureEnvelope.class,
+            srsc.sadkdp.jsonEntities.TicketCredentials.class,
+            srsc.sadkdp.jsonEntities.TicketCredentialsMessage.class,
+            srsc.sadkdp.jsonEntities.TicketCredentialsReturn.class,
+            srsc.srtsp.jsonEntities.AckVerification.class,
+            srsc.srtsp.jsonEntities.RequestAndCredentials.class,
+            srsc.srtsp.jsonEntities.RequestAndCredentialsSend.class,
+            srsc.srtsp.jsonEntities.SyncInitialFrame.class,
+            srsc.srtsp.jsonEntities.TicketCredentials.class,
+            srsc.srtsp.jsonEntities.Verification.class);
+
+    @Test
+    void everyEntityIsRegistered() throws Exception {
+        for (Class<?> c : ENTITIES)
+            assertSame(c.getField("ADAPTER").get(null), JsonCodec.GSON.getAdapter(c), c.getName());
+    }
+
+    @Test
+    void writesWhatReflectiveGsonWrites() throws Exception {
+        for (Class<?> c : ENTITIES) {
+            Object filled = filled(c, 0);
+            assertEquals(REFLECTIVE.toJson(filled), JsonCodec.GSON.toJson(filled), c.getName());
+            Object empty = empty(c);
+            assertEquals(REFLECTIVE.toJson(empty), JsonCodec.GSON.toJson(empty), c.getName());
+        }
+    }
+
+    @Test
+    void readsWhatReflectiveGsonWrites() throws Exception {
+        for (Class<?> c : ENTITIES) {
+            for (Object value : new Object[] { filled(c, 0), empty(c) }) {
+                String json = REFLECTIVE.toJson(value);
+                assertEquals(json, REFLECTIVE.toJson(JsonCodec.GSON.fromJson(json, c)), c.getName());
+            }
+        }
+    }
+
+    private static Object empty(Class<?> c) throws Exception {
+        Constructor<?> constructor = c.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    // every field set, to a value that tells the fields apart and needs escaping
+    private static Object filled(Class<?> c, int depth) throws Exception {
+        Object value = empty(c);
+        int n = 1;
+        for (Field f : c.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()))
+                continue;
+            f.setAccessible(true);
+            Class<?> t = f.getType();
+            n++;
+            if (t == String.class)
+                f.set(value, f.getName() + " <=>&'\"\u00e9 " + n);
+            else if (t == int.class)
+                f.setInt(value, -1000 * n - 7);
+            else if (t == long.class)
+                f.setLong(value, -1000L * Integer.MAX_VALUE * n - 7);
+            else if (t == byte.class)
+                f.setByte(value, (byte) n);
+            else if (t == boolean.class)
+                f.setBoolean(value, true);
+            else if (t == byte[].class)
+                f.set(value, new byte[] { (byte) n, -128, 0, 127 });
+            else if (t == String[].class)
+                f.set(value, new String[] { f.getName(), "", "\u00e9" });
+            else if (depth < 3)
+                f.set(value, filled(t, depth + 1));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,79 @@
+package srsc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class NonceStoreTest {
+
+    private static final long WINDOW = 40;
+    private static final int BUCKETS = 5; // buckets of 10 ms
+
+    // added anywhere in a bucket, a nonce is kept the window and gone one bucket later
+    @Test
+    void windowForgets() {
+        for (long offset = 0; offset < 2 * WINDOW; offset++) {
+            AtomicLong clock = new AtomicLong(1000 + offset);
+            NonceStore nonces = new NonceStore(WINDOW, BUCKETS, 4, clock::get);
+            long t = clock.get();
+            assertTrue(nonces.add(42));
+            assertFalse(nonces.add(42));
+
+            clock.set(t + WINDOW);
+            assertTrue(nonces.contains(42), "forgotten before the window, offset " + offset);
+            clock.set(t + WINDOW + WINDOW / (BUCKETS - 1));
+            assertFalse(nonces.contains(42), "kept past a bucket after the window, offset " + offset);
+            assertTrue(nonces.add(42));
+        }
+    }
+
+    // a window the buckets do not divide is rounded up, not down
+    @Test
+    void unevenWindowIsKept() {
+        for (long offset = 0; offset < 50; offset++) {
+            AtomicLong clock = new AtomicLong(1000 + offset);
+            NonceStore nonces = new NonceStore(WINDOW + 3, BUCKETS, 1, clock::get);
+            long t = clock.get();
+            nonces.add(7);
+            clock.set(t + WINDOW + 3);
+            assertTrue(nonces.contains(7), "forgotten before the window, offset " + offset);
+        }
+    }
+
+    @Test
+    void sizeFollowsExpiry() {
+        AtomicLong clock = new AtomicLong(1000);
+        NonceStore nonces = new NonceStore(WINDOW, BUCKETS, 4, clock::get);
+        for (int nonce = 0; nonce < 100; nonce++)
+            nonces.add(nonce * 7919);
+        assertEquals(100, nonces.size());
+
+        clock.addAndGet(WINDOW / 2);
+        for (int nonce = 100; nonce < 150; nonce++)
+            nonces.add(nonce * 7919);
+        assertEquals(150, nonces.size());
+
+        clock.addAndGet(WINDOW / 2 + WINDOW / (BUCKETS - 1));
+        assertEquals(50, nonces.size());
+        assertTrue(nonces.add(0));
+        assertFalse(nonces.add(149 * 7919));
+
+        clock.addAndGet(WINDOW + WINDOW / (BUCKETS - 1)); // the 0 added again last goes too
+        assertEquals(0, nonces.size());
+    }
+
+    @Test
+    void invalidArgumentsAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new NonceStore(0, BUCKETS, 4));
+        assertThrows(IllegalArgumentException.class, () -> new NonceStore(-1, BUCKETS, 4));
+        assertThrows(IllegalArgumentException.class, () -> new NonceStore(WINDOW, 1, 4));
+        assertThrows(IllegalArgumentException.class, () -> new NonceStore(WINDOW, 0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new NonceStore(WINDOW, BUCKETS, 0));
+        assertThrows(IllegalArgumentException.class, () -> new NonceStore(WINDOW, BUCKETS, 4, null));
+    }
+}
@@ -0,0 +1,119 @@
+package srsc.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import srsc.JsonCodec;
+import srsc.configEntities.Ciphersuite;
+import srsc.srtsp.SRTSPDatagramSocket;
+import srsc.srtsp.SRTSPPacketCodec;
+
+class ReceivePipelineTest {
+
+    private static final String RESOURCES = "./src/main/resources/";
+    private static final int FRAMES = 200;
+
+    // SRTSP only, no DTLS handshake: plain UDP on the loopback carries the packets
+    @Test
+    void framesComeOutInOrderAndForgeriesAreDropped() throws Exception {
+        Ciphersuite suite = suite();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        ReceiveWorkers workers = new ReceiveWorkers(3, 16, ProxySession.FRAME_SIZE);
+
+        try (DatagramSocket sender = new DatagramSocket(0, loopback)) {
+            SRTSPDatagramSocket socket = socket(suite, sender, loopback);
+            socket.setReceiveBufferSize(1 << 20);
+            SRTSPPacketCodec codec = new SRTSPPacketCodec(suite);
+            for (int i = 0; i < FRAMES; i++) {
+                byte[] packet = protect(codec, ByteBuffer.allocate(4 + i).putInt(i).array(), i);
+                // a forgery of each packet first: it must not keep the real one out
+                byte[] forged = packet.clone();
+                forged[forged.length - 1] ^= 1;
+                send(sender, socket, forged);
+                send(sender, socket, packet);
+            }
+            send(sender, socket, protect(codec, new byte[] { 0x04 }, FRAMES)); // eot
+
+            List<Integer> received = new ArrayList<>();
+            ReceivePipeline pipeline = assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+                ReceivePipeline p = new ReceivePipeline(socket, workers, 8);
+                p.run((seq, timestamp, data, length) -> {
+                    if (length == 1 && data[0] == 0x04)
+                        return false;
+                    assertEquals(4 + received.size(), length);
+                    received.add(ByteBuffer.wrap(data, 0, length).getInt());
+                    return true;
+                });
+                return p;
+            });
+
+            assertEquals(FRAMES, received.size());
+            for (int i = 0; i < FRAMES; i++)
+                assertEquals(i, received.get(i));
+            assertEquals(FRAMES, pipeline.getDropped());
+            assertEquals(16, workers.free.size(), "slots not given back");
+        }
+    }
+
+    // a socket failing under the receiver fails the session, it does not end it
+    @Test
+    void socketFailureIsThrown() throws Exception {
+        Ciphersuite suite = suite();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        ReceiveWorkers workers = new ReceiveWorkers(1, 4, ProxySession.FRAME_SIZE);
+
+        try (DatagramSocket sender = new DatagramSocket(0, loopback)) {
+            SRTSPDatagramSocket socket = socket(suite, sender, loopback);
+            send(sender, socket, protect(new SRTSPPacketCodec(suite), new byte[16], 0));
+
+            assertTimeoutPreemptively(Duration.ofSeconds(20), () -> {
+                ReceivePipeline p = new ReceivePipeline(socket, workers, 2);
+                assertThrows(IOException.class, () -> p.run((seq, timestamp, data, length) -> {
+                    socket.close();
+                    return true;
+                }));
+            });
+            assertEquals(4, workers.free.size(), "slots not given back");
+        }
+    }
+
+    static SRTSPDatagramSocket socket(Ciphersuite suite, DatagramSocket sender, InetAddress loopback)
+            throws Exception {
+        SRTSPDatagramSocket socket = new SRTSPDatagramSocket(suite, false, RESOURCES + "proxybox.keystore",
+                "password", RESOURCES + "catrustedcert.keystore", "password", RESOURCES + "dtls.json",
+                sender.getLocalSocketAddress(), new InetSocketAddress(loopback, 0));
+        sender.receive(new DatagramPacket(new byte[256], 256)); // the socket telling it listens
+        return socket;
+    }
+
+    static Ciphersuite suite() {
+        String json = "{\"confidentiality\": {\"spec\": \"AES/GCM/NoPadding\", \"keyspec\": \"AES\""
+                + ", \"key\": \"000102030405060708090a0b0c0d0e0f000102030405060708090a0b0c0d0e0f\""
+                + ", \"iv\": \"00112233445566778899aabb\"}, \"protection\": \"SRTSP\"}";
+        return JsonCodec.GSON.fromJson(json, Ciphersuite.class);
+    }
+
+    private static byte[] protect(SRTSPPacketCodec codec, byte[] payload, long timestamp) throws Exception {
+        byte[] packet = new byte[codec.getPacketSize(payload.length)];
+        int length = codec.protect(payload, 0, payload.length, packet, 0, codec.nextSequence(), timestamp);
+        return Arrays.copyOf(packet, length);
+    }
+
+    private static void send(DatagramSocket sender, DatagramSocket to, byte[] packet) throws Exception {
+        sender.send(new DatagramPacket(packet, packet.length, to.getLocalSocketAddress()));
+    }
+}
@@ -0,0 +1,82 @@
+package srsc.sadkdp;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.time.LocalDate;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import com.google.gson.stream.JsonWriter;
+
+import srsc.configEntities.Coin;
+import srsc.configEntities.CoinWithIntegrity;
+import srsc.configEntities.IssuedCoin;
+import srsc.configEntities.SignedCoin;
+
+/*
+ * Issues wallet coins CoinV-from.json to CoinV-to.json, as the commented out
+ * coin generation of Test.java does: a coin signed with a fresh EC key of
+ * its own, issued with the bancobank key, with its SHA-256 and SHA-512
+ * integrity proofs. Valid for 12 months. Not a unit test, run it by hand:
+ *
+ *   mvn -B test-compile
+ *   java -cp target/classes:target/test-classes:<gson jar>:<bcprov jar> srsc.sadkdp.CoinIssuer <value> <from> <to> [wallet dir]
+ */
+public class CoinIssuer {
+
+    private static final String BANK_KEYSTORE = "./src/main/resources/bancobank.keystore";
+    private static final String BANK = "bancobank", PASSWORD = "password";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Erro, usar: CoinIssuer <value> <from> <to> [wallet dir]");
+            System.exit(-1);
+        }
+        int value = Integer.parseInt(args[0]), from = Integer.parseInt(args[1]), to = Integer.parseInt(args[2]);
+        String wallet = args.length > 3 ? args[3] : "./src/main/resources/wallet";
+
+        Security.addProvider(new BouncyCastleProvider());
+        KeyStore bank = KeyStore.getInstance(new File(BANK_KEYSTORE), PASSWORD.toCharArray());
+        PrivateKey bankKey = (PrivateKey) bank.getKey(BANK, PASSWORD.toCharArray());
+        byte[] bankPublicKey = bank.getCertificate(BANK).getPublicKey().getEncoded();
+
+        for (int n = from; n <= to; n++) {
+            Coin c = new Coin("PPVMovieCoin", "BancoBank", value, LocalDate.now().plusMonths(12).toString());
+
+            KeyPair cK = KeyPairGenerator.getInstance("EC", "BC").generateKeyPair();
+            Signature signatureC = Signature.getInstance("SHA512withECDSA", "BC");
+            signatureC.initSign(cK.getPrivate(), new SecureRandom());
+            signatureC.update(c.toByteArray());
+            SignedCoin s = new SignedCoin(c, cK.getPublic().getEncoded(), signatureC.sign());
+
+            Signature signatureI = Signature.getInstance("SHA512withECDSA", "BC");
+            signatureI.initSign(bankKey, new SecureRandom());
+            signatureI.update(s.toByteArray());
+            IssuedCoin i = new IssuedCoin(s, bankPublicKey, signatureI.sign());
+
+            CoinWithIntegrity cwi = new CoinWithIntegrity(i,
+                    MessageDigest.getInstance("SHA256", "BC").digest(i.toByteArray()),
+                    MessageDigest.getInstance("SHA512", "BC").digest(i.toByteArray()));
+
+            // indented as the wallet's first coins
+            StringWriter json = new StringWriter();
+            JsonWriter out = new JsonWriter(json);
+            out.setIndent("    ");
+            CoinWithIntegrity.ADAPTER.write(out, cwi);
+            out.flush();
+            String name = "Coin" + value + "-" + n + ".json";
+            Files.write(Paths.get(wallet, name), json.toString().getBytes());
+            System.out.println(name);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package srsc.sadkdp;
+
+import java.security.Security;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/*
+ * The password based crypto of one SADKDP purchase on the server (the PBE
+ * of message 3 and the HMACs of messages 3 to 6), with the key material
+ * set up on every use as before KeyMaterialCache and with the cache. Not a
+ * unit test, run it by hand:
+ *
+ *   mvn -B test-compile
+ *   java -cp target/classes:target/test-classes:<bcprov jar> srsc.sadkdp.KeyMaterialCacheBenchmark [purchases] [users]
+ */
+public class KeyMaterialCacheBenchmark {
+
+    private static final String PBE = "PBEWithMD5AndTripleDES";
+    private static final String HMAC = "HmacSHA512";
+    private static final int MACS = 4;
+    private static final int COUNTER = 1; // as ServerHandshake's
+
+    private static final byte[] SALT = new byte[8];
+    private static final byte[] PAYLOAD = new byte[80]; // about message 3's
+
+    public static void main(String[] args) throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        int purchases = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        KeyMaterialCache keys = new KeyMaterialCache(KeyMaterialCache.DEFAULT_CAPACITY, KeyMaterialCache.DEFAULT_TTL);
+        for (int round = 0; round < 3; round++) { // the first two warm up
+            long t0 = System.nanoTime();
+            for (int i = 0; i < purchases; i++)
+                uncached("password" + i % users);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < purchases; i++)
+                cached(keys, "user" + i % users, "password" + i % users);
+            long t2 = System.nanoTime();
+            if (round == 2)
+                System.out.printf("%d purchases by %d users: without cache %.1f us, with cache %.1f us per purchase%n",
+                        purchases, users, (t1 - t0) / 1e3 / purchases, (t2 - t1) / 1e3 / purchases);
+        }
+        System.out.println(keys);
+    }
+
+    private static void uncached(String password) throws Exception {
+        SecretKey key = SecretKeyFactory.getInstance(PBE).generateSecret(new PBEKeySpec(password.toCharArray()));
+        Cipher cipher = Cipher.getInstance(PBE);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new PBEParameterSpec(SALT, COUNTER));
+        cipher.doFinal(PAYLOAD);
+        for (int i = 0; i < MACS; i++) {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(password.getBytes(), HMAC));
+            mac.update(PAYLOAD);
+            mac.doFinal();
+        }
+    }
+
+    private static void cached(KeyMaterialCache keys, String userId, String password) throws Exception {
+        Cipher cipher = keys.pbeCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, keys.pbeKey(userId, password), new PBEParameterSpec(SALT, COUNTER));
+        cipher.doFinal(PAYLOAD);
+        for (int i = 0; i < MACS; i++) {
+            Mac mac = keys.mac(userId, password);
+            mac.update(PAYLOAD);
+            mac.doFinal();
+        }
+    }
+}
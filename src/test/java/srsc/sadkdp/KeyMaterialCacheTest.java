@@ -0,0 +1,40 @@
+package srsc.sadkdp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class KeyMaterialCacheTest {
+
+    private static final byte[] DATA = { 1, 2, 3 };
+
+    @Test
+    void entryIsOnlyUsedWithItsPassword() throws Exception {
+        KeyMaterialCache keys = new KeyMaterialCache(KeyMaterialCache.DEFAULT_CAPACITY, KeyMaterialCache.DEFAULT_TTL);
+
+        assertArrayEquals(hmac("old"), keys.mac("alice", "old").doFinal(DATA));
+        assertSame(keys.pbeKey("alice", "old"), keys.pbeKey("alice", "old"));
+
+        // a changed password is not served the old key material
+        assertArrayEquals(hmac("new"), keys.mac("alice", "new").doFinal(DATA));
+        assertNotSame(keys.pbeKey("alice", "old"), keys.pbeKey("alice", "new"));
+        assertArrayEquals(hmac("new"), keys.mac("alice", "new").doFinal(DATA));
+    }
+
+    @Test
+    void usersWithTheSamePasswordDoNotShare() throws Exception {
+        KeyMaterialCache keys = new KeyMaterialCache(KeyMaterialCache.DEFAULT_CAPACITY, KeyMaterialCache.DEFAULT_TTL);
+        assertNotSame(keys.pbeKey("alice", "password"), keys.pbeKey("bob", "password"));
+    }
+
+    private static byte[] hmac(String password) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(new SecretKeySpec(password.getBytes(), "HmacSHA512"));
+        return mac.doFinal(DATA);
+    }
+}
@@ -0,0 +1,168 @@
+package srsc.srtsp;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Random;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import com.google.gson.reflect.TypeToken;
+
+import srsc.JsonCodec;
+import srsc.configEntities.CipherMovie;
+import srsc.configEntities.Ciphersuite;
+
+/*
+ * Protect + unprotect time per frame and throughput of the three media
+ * protection profiles, with the suites of monsters5 (BOTH: SRTSP over DTLS),
+ * monsters6 (SRTSP only, keyed as SRTSP.mediaSuite does) and monsters7 (DTLS
+ * only). DTLS runs on a pair of in-memory SSLEngines set up as DTLSSocket
+ * does, no network. Not a unit test, run it by hand:
+ *
+ *   mvn -B test-compile
+ *   java -cp target/classes:target/test-classes:<gson jar>:<bcprov jar> srsc.srtsp.MediaProfileBenchmark [frames] [keystore dir] [password]
+ *
+ * The keystore dir holds streamingserver, proxybox and catrustedcert
+ * .keystore, as in src/main/resources. Frames are 200 to 3199 bytes, as
+ * MovieGenerator writes them.
+ */
+public class MediaProfileBenchmark {
+
+    private static final String[] MOVIES = { "monsters5", "monsters6", "monsters7" };
+    private static final int MIN_FRAME = 200, MAX_FRAME = 3200;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String keys = args.length > 1 ? args[1] : "./src/main/resources";
+        String password = args.length > 2 ? args[2] : "password";
+        String resources = "./src/main/resources/";
+
+        Type type = new TypeToken<Map<String, CipherMovie>>() {
+        }.getType();
+        Map<String, CipherMovie> movies = JsonCodec.GSON
+                .fromJson(new String(Files.readAllBytes(Paths.get(resources + "CipherMovies.json"))), type);
+
+        Random random = new Random(1);
+        byte[][] payloads = new byte[frames][];
+        long bytes = 0;
+        for (int i = 0; i < frames; i++) {
+            payloads[i] = new byte[MIN_FRAME + random.nextInt(MAX_FRAME - MIN_FRAME)];
+            random.nextBytes(payloads[i]);
+            bytes += payloads[i].length;
+        }
+
+        System.out.printf("%10s %8s %20s %42s %10s %8s%n", "movie", "profile", "SRTSP suite", "DTLS suite", "us/frame",
+                "MB/s");
+        for (String name : MOVIES) {
+            Ciphersuite movie = movies.get(name).getCiphersuite();
+            Ciphersuite suite = SRTSP.mediaSuite(movie, new byte[32], new byte[32], 1, 2, 3);
+            SSLEngine server = null, proxy = null;
+            if (suite.usesDTLS()) {
+                server = DTLSSocket.createEngine(true, keys + "/streamingserver.keystore", password,
+                        keys + "/catrustedcert.keystore", password, resources + "dtls.json");
+                proxy = DTLSSocket.createEngine(false, keys + "/proxybox.keystore", password,
+                        keys + "/catrustedcert.keystore", password, resources + "dtls.json");
+                handshake(server, proxy);
+            }
+
+            long ns = 0;
+            for (int round = 0; round < 3; round++) // the first two warm up
+                ns = run(payloads, suite, server, proxy);
+            System.out.printf("%10s %8s %20s %42s %10.2f %8.1f%n", name, suite.getProtection(),
+                    suite.usesSRTSP() ? suite.getConfidentiality().getSpec() : "-",
+                    server == null ? "-" : server.getSession().getCipherSuite(), ns / 1e3 / frames,
+                    bytes / 1e6 / (ns / 1e9));
+        }
+    }
+
+    // ns to send every payload through the profile and back
+    private static long run(byte[][] payloads, Ciphersuite suite, SSLEngine server, SSLEngine proxy)
+            throws Exception {
+        SRTSPPacketCodec tx = new SRTSPPacketCodec(suite), rx = new SRTSPPacketCodec(suite);
+        byte[] packet = new byte[tx.getPacketSize(MAX_FRAME)];
+        ByteBuffer record = server == null ? null : ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+        ByteBuffer received = proxy == null ? null
+                : ByteBuffer.allocate(Math.max(packet.length, proxy.getSession().getApplicationBufferSize()));
+
+        long t0 = System.nanoTime();
+        for (byte[] payload : payloads) {
+            int length = tx.protect(payload, 0, payload.length, packet, 0, tx.nextSequence(), 0);
+            if (server != null) {
+                record.clear();
+                check(server.wrap(ByteBuffer.wrap(packet, 0, length), record));
+                record.flip();
+                received.clear();
+                check(proxy.unwrap(record, received));
+                length = received.position();
+                System.arraycopy(received.array(), 0, packet, 0, length);
+            }
+            if (rx.unprotect(packet, 0, length) != payload.length)
+                throw new Exception("Frame did not come back");
+        }
+        return System.nanoTime() - t0;
+    }
+
+    private static void check(SSLEngineResult result) throws Exception {
+        if (result.getStatus() != SSLEngineResult.Status.OK)
+            throw new Exception("DTLS " + result);
+    }
+
+    // the DTLS handshake of the two engines, records handed over in memory
+    private static void handshake(SSLEngine server, SSLEngine proxy) throws Exception {
+        ArrayDeque<ByteBuffer> toServer = new ArrayDeque<>(), toProxy = new ArrayDeque<>();
+        server.beginHandshake();
+        proxy.beginHandshake();
+        for (int i = 0; i < 1000; i++) {
+            step(server, toServer, toProxy);
+            step(proxy, toProxy, toServer);
+            if (done(server) && done(proxy) && toServer.isEmpty() && toProxy.isEmpty())
+                return;
+        }
+        throw new Exception("DTLS handshake did not finish");
+    }
+
+    private static void step(SSLEngine engine, ArrayDeque<ByteBuffer> in, ArrayDeque<ByteBuffer> out)
+            throws Exception {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        switch (status) {
+            case NEED_WRAP:
+                ByteBuffer record = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                engine.wrap(EMPTY, record);
+                record.flip();
+                if (record.hasRemaining())
+                    out.add(record);
+                break;
+            case NEED_UNWRAP:
+            case NEED_UNWRAP_AGAIN:
+                ByteBuffer next = in.poll();
+                if (next == null && status == HandshakeStatus.NEED_UNWRAP)
+                    break;
+                engine.unwrap(next == null ? EMPTY : next,
+                        ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()));
+                break;
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+                break;
+            default:
+                // records of a finished engine still on their way to the other one
+                ByteBuffer late = in.poll();
+                if (late != null)
+                    engine.unwrap(late, ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()));
+                break;
+        }
+    }
+
+    private static boolean done(SSLEngine engine) {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+    }
+}
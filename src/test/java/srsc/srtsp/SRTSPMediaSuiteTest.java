@@ -0,0 +1,76 @@
+package srsc.srtsp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import srsc.JsonCodec;
+import srsc.configEntities.Ciphersuite;
+
+class SRTSPMediaSuiteTest {
+
+    private static final byte[] SESSION_KEY = new byte[32], MAC_KEY = new byte[32];
+
+    static {
+        Arrays.fill(SESSION_KEY, (byte) 1);
+        Arrays.fill(MAC_KEY, (byte) 2);
+    }
+
+    @Test
+    void keyedBySessionAndNonces() throws Exception {
+        Ciphersuite movie = suite("AES/GCM/NoPadding", "AES", "SRTSP");
+        Ciphersuite session = SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 1, 2, 3);
+
+        assertEquals(movie.getConfidentiality().getKey().length, session.getConfidentiality().getKey().length);
+        assertEquals(movie.getConfidentiality().getIv().length, session.getConfidentiality().getIv().length);
+        assertFalse(Arrays.equals(movie.getConfidentiality().getKey(), session.getConfidentiality().getKey()));
+        assertEquals(Ciphersuite.SRTSP, session.getProtection());
+
+        // both ends derive the same suite, another handshake gets another one
+        Ciphersuite same = SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 1, 2, 3);
+        assertArrayEquals(session.getConfidentiality().getKey(), same.getConfidentiality().getKey());
+        assertArrayEquals(session.getConfidentiality().getIv(), same.getConfidentiality().getIv());
+        Ciphersuite other = SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 1, 2, 4);
+        assertFalse(Arrays.equals(session.getConfidentiality().getKey(), other.getConfidentiality().getKey()));
+    }
+
+    // a ready packet of one session does not unprotect in another
+    @Test
+    void readyPacketDoesNotFitAnotherSession() throws Exception {
+        Ciphersuite movie = suite("ChaCha20-Poly1305", "ChaCha20", "SRTSP");
+        SRTSPPacketCodec tx = new SRTSPPacketCodec(SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 1, 2, 3));
+        SRTSPPacketCodec rx = new SRTSPPacketCodec(SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 5, 6, 7));
+
+        byte[] packet = new byte[tx.getPacketSize(0)];
+        int n = tx.protect(new byte[0], 0, 0, packet, 0, tx.nextSequence(), 0);
+        assertThrows(GeneralSecurityException.class, () -> rx.unprotect(packet, 0, n));
+    }
+
+    @Test
+    void needsAead() {
+        Ciphersuite movie = suite("AES/CTR/NoPadding", "AES", "SRTSP");
+        assertThrows(Exception.class, () -> SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 1, 2, 3));
+    }
+
+    @Test
+    void dtlsProfilesKeepTheMovieSuite() throws Exception {
+        Ciphersuite movie = suite("AES/CTR/NoPadding", "AES", "BOTH");
+        assertSame(movie, SRTSP.mediaSuite(movie, SESSION_KEY, MAC_KEY, 1, 2, 3));
+    }
+
+    private static Ciphersuite suite(String spec, String keySpec, String protection) {
+        String json = "{\"confidentiality\": {\"spec\": \"" + spec + "\", \"keyspec\": \"" + keySpec
+                + "\", \"key\": \"000102030405060708090a0b0c0d0e0f000102030405060708090a0b0c0d0e0f\""
+                + ", \"iv\": \"00112233445566778899aabb\"}, \"integrity\": {\"spec\": \"HmacSHA256\""
+                + ", \"keyspec\": \"HmacSHA256\", \"key\": \"000102030405060708090a0b0c0d0e0f\"}, "
+                + "\"protection\": \"" + protection + "\"}";
+        return JsonCodec.GSON.fromJson(json, Ciphersuite.class);
+    }
+}
@@ -0,0 +1,197 @@
+package srsc.srtsp;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import srsc.configEntities.Ciphersuite;
+import srsc.configEntities.Confidentiality;
+import srsc.configEntities.Integrity;
+
+/*
+ * Allocation rate of the media packet hot path (protect + unprotect of one
+ * packet, as SRTSPDatagramSocket and SRTSPDatagramChannel do per frame).
+ *
+ * The JCE providers allocate in Cipher.init and doFinal whatever we do, so
+ * each suite is measured against the same Cipher and Mac calls made
+ * directly, on the same packet layout, since some providers allocate more
+ * when the ciphertext is not at the start of the array. The codec must not
+ * allocate more than those calls, plus SLACK bytes for measurement noise.
+ * A scratch buffer or copy per packet (the payload is PAYLOAD bytes) is
+ * well above it.
+ */
+class SRTSPPacketCodecAllocationTest {
+
+    private static final int PAYLOAD = 1024;
+    private static final int WARMUP = 50_000;
+    private static final int PACKETS = 20_000;
+    private static final long SLACK = 64;
+    private static final int HEADER = SRTSPPacketCodec.HEADERSIZE;
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeAll
+    static void allocationCounter() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    void aesGcm() throws Exception {
+        check(suite("AES/GCM/NoPadding", "AES", 12, null), new AeadBaseline("AES/GCM/NoPadding", "AES", 12));
+    }
+
+    @Test
+    void chaCha20Poly1305() throws Exception {
+        check(suite("ChaCha20-Poly1305", "ChaCha20", 12, null),
+                new AeadBaseline("ChaCha20-Poly1305", "ChaCha20", 12));
+    }
+
+    @Test
+    void aesCtrHmac() throws Exception {
+        check(suite("AES/CTR/NoPadding", "AES", 16, "HmacSHA256"),
+                new MacBaseline("AES/CTR/NoPadding", "AES", 16, "HmacSHA256"));
+    }
+
+    private static Ciphersuite suite(String spec, String keySpec, int ivSize, String macSpec) {
+        Integrity integrity = macSpec == null ? null : new Integrity(macSpec, new byte[32], macSpec);
+        Ciphersuite c = new Ciphersuite(new Confidentiality(spec, new byte[32], keySpec, new byte[ivSize]),
+                integrity);
+        c.setProtection(Ciphersuite.SRTSP);
+        return c;
+    }
+
+    private static void check(Ciphersuite c, PacketPath baseline) throws Exception {
+        SRTSPPacketCodec tx = new SRTSPPacketCodec(c), rx = new SRTSPPacketCodec(c);
+        byte[] payload = new byte[PAYLOAD];
+        byte[] packet = new byte[tx.getPacketSize(PAYLOAD)];
+        PacketPath arrays = () -> rx.unprotect(packet, 0,
+                tx.protect(payload, 0, PAYLOAD, packet, 0, tx.nextSequence(), 0));
+
+        ByteBuffer in = ByteBuffer.allocate(PAYLOAD), out = ByteBuffer.allocate(tx.getPacketSize(PAYLOAD));
+        PacketPath buffers = () -> {
+            out.clear();
+            in.clear();
+            tx.protect(ByteBuffer.wrap(payload), out, tx.nextSequence(), 0);
+            out.flip();
+            rx.unprotect(out, in);
+        };
+
+        long expected = bytesPerPacket(baseline);
+        long array = bytesPerPacket(arrays);
+        long buffer = bytesPerPacket(buffers);
+        String suite = c.getConfidentiality().getSpec();
+        assertTrue(array <= expected + SLACK,
+                suite + ": " + array + " bytes per packet, the provider needs " + expected);
+        // the ByteBuffer path also wraps the payload, as the channel does, and
+        // the providers' ByteBuffer methods vary a little more from run to run
+        assertTrue(buffer <= expected + 4 * SLACK,
+                suite + " (ByteBuffer): " + buffer + " bytes per packet, the provider needs " + expected);
+    }
+
+    private static long bytesPerPacket(PacketPath path) throws Exception {
+        for (int i = 0; i < WARMUP; i++)
+            path.run();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < PACKETS; i++)
+            path.run();
+        return (threads.getThreadAllocatedBytes(thread) - before) / PACKETS;
+    }
+
+    private interface PacketPath {
+        void run() throws Exception;
+    }
+
+    // what any AEAD packet costs: one init per packet and direction, AAD, doFinal
+    private static final class AeadBaseline implements PacketPath {
+        final Cipher encrypt, decrypt; // a sender and a receiver, like two codecs
+        final SecretKeySpec key;
+        final boolean gcm;
+        final byte[] nonce;
+        final byte[] header = new byte[HEADER];
+        final byte[] payload = new byte[PAYLOAD];
+        final byte[] packet = new byte[HEADER + PAYLOAD + 16];
+        long seq;
+
+        AeadBaseline(String spec, String keySpec, int ivSize) throws Exception {
+            encrypt = Cipher.getInstance(spec);
+            decrypt = Cipher.getInstance(spec);
+            key = new SecretKeySpec(new byte[32], keySpec);
+            gcm = spec.contains("/GCM/");
+            nonce = new byte[ivSize];
+        }
+
+        @Override
+        public void run() throws Exception {
+            seq++; // the providers refuse to use a nonce twice in a row
+            for (int i = 0; i < Long.SIZE / 8; i++)
+                nonce[i] = (byte) (seq >>> (56 - 8 * i));
+            init(encrypt, Cipher.ENCRYPT_MODE);
+            encrypt.updateAAD(header);
+            int n = encrypt.doFinal(payload, 0, PAYLOAD, packet, HEADER);
+            init(decrypt, Cipher.DECRYPT_MODE);
+            decrypt.updateAAD(header);
+            decrypt.doFinal(packet, HEADER, n, packet, HEADER);
+        }
+
+        private void init(Cipher cipher, int mode) throws Exception {
+            if (gcm)
+                cipher.init(mode, key, new GCMParameterSpec(128, nonce));
+            else
+                cipher.init(mode, key, new IvParameterSpec(nonce));
+        }
+    }
+
+    // cipher + HMAC: a MAC over header and payload, encrypted along with it
+    private static final class MacBaseline implements PacketPath {
+        final Cipher encrypt, decrypt;
+        final SecretKeySpec key;
+        final Mac hMac;
+        final byte[] nonce;
+        final byte[] header = new byte[HEADER];
+        final byte[] payload = new byte[PAYLOAD];
+        final byte[] mac;
+        final byte[] packet;
+
+        MacBaseline(String spec, String keySpec, int ivSize, String macSpec) throws Exception {
+            encrypt = Cipher.getInstance(spec);
+            decrypt = Cipher.getInstance(spec);
+            key = new SecretKeySpec(new byte[32], keySpec);
+            hMac = Mac.getInstance(macSpec);
+            hMac.init(new SecretKeySpec(new byte[32], macSpec));
+            nonce = new byte[ivSize];
+            mac = new byte[hMac.getMacLength()];
+            packet = new byte[HEADER + PAYLOAD + mac.length + 16];
+        }
+
+        @Override
+        public void run() throws Exception {
+            hMac.update(header);
+            hMac.update(payload);
+            hMac.doFinal(mac, 0);
+            encrypt.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+            int n = encrypt.update(payload, 0, PAYLOAD, packet, HEADER);
+            n += encrypt.doFinal(mac, 0, mac.length, packet, HEADER + n);
+
+            decrypt.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(nonce));
+            decrypt.doFinal(packet, HEADER, n, packet, HEADER);
+            hMac.update(header);
+            hMac.update(packet, HEADER, PAYLOAD);
+            hMac.doFinal(mac, 0);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package srsc.srtsp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import srsc.JsonCodec;
+import srsc.configEntities.Ciphersuite;
+
+class SRTSPPacketCodecTest {
+
+    private static final int PAYLOAD = 1024;
+
+    @Test
+    void roundTrip() throws Exception {
+        Ciphersuite c = suite("AES/CTR/NoPadding", "AES", "00112233445566778899aabbccddeeff", "HmacSHA256");
+        SRTSPPacketCodec tx = new SRTSPPacketCodec(c), rx = new SRTSPPacketCodec(c);
+        byte[] payload = new byte[PAYLOAD];
+        Arrays.fill(payload, (byte) 7);
+
+        byte[] packet = new byte[tx.getPacketSize(PAYLOAD)];
+        long seq = tx.nextSequence();
+        int n = tx.protect(payload, 0, PAYLOAD, packet, 0, seq, 42);
+        assertEquals(PAYLOAD, rx.unprotect(packet, 0, n));
+        assertArrayEquals(payload, Arrays.copyOf(packet, PAYLOAD));
+        assertEquals(seq, rx.getReceivedSequence());
+        assertEquals(42, rx.getReceivedTimestamp());
+
+        ByteBuffer out = ByteBuffer.allocate(tx.getPacketSize(PAYLOAD));
+        tx.protect(ByteBuffer.wrap(payload), out, tx.nextSequence(), 43);
+        out.flip();
+        ByteBuffer in = ByteBuffer.allocate(PAYLOAD);
+        assertEquals(PAYLOAD, rx.unprotect(out, in));
+        assertArrayEquals(payload, in.array());
+    }
+
+    // RC4 has no iv: each packet must still get its own keystream
+    @Test
+    void streamCipherWithoutIvIsKeyedPerPacket() throws Exception {
+        Ciphersuite c = suite("RC4", "RC4", null, "HmacSHA512");
+        SRTSPPacketCodec tx = new SRTSPPacketCodec(c), rx = new SRTSPPacketCodec(c);
+        byte[] payload = new byte[PAYLOAD];
+
+        byte[] first = new byte[tx.getPacketSize(PAYLOAD)], second = new byte[tx.getPacketSize(PAYLOAD)];
+        int n = tx.protect(payload, 0, PAYLOAD, first, 0, 1, 0);
+        tx.protect(payload, 0, PAYLOAD, second, 0, 2, 0);
+        assertFalse(Arrays.equals(Arrays.copyOfRange(first, SRTSPPacketCodec.HEADERSIZE, n),
+                Arrays.copyOfRange(second, SRTSPPacketCodec.HEADERSIZE, n)));
+
+        assertEquals(PAYLOAD, rx.unprotect(second, 0, n));
+        assertEquals(PAYLOAD, rx.unprotect(first, 0, n));
+    }
+
+    @Test
+    void ecbIsRefused() {
+        assertThrows(GeneralSecurityException.class,
+                () -> new SRTSPPacketCodec(suite("Blowfish", "Blowfish", "0011223344556677", "HmacSHA256")));
+        assertThrows(GeneralSecurityException.class,
+                () -> new SRTSPPacketCodec(suite("AES/ECB/PKCS5Padding", "AES", null, "HmacSHA256")));
+    }
+
+    private static Ciphersuite suite(String spec, String keySpec, String iv, String macSpec) {
+        String json = "{\"confidentiality\": {\"spec\": \"" + spec + "\", \"keyspec\": \"" + keySpec
+                + "\", \"key\": \"000102030405060708090a0b0c0d0e0f000102030405060708090a0b0c0d0e0f\""
+                + (iv == null ? "" : ", \"iv\": \"" + iv + "\"") + "}, \"integrity\": {\"spec\": \"" + macSpec
+                + "\", \"keyspec\": \"" + macSpec
+                + "\", \"key\": \"000102030405060708090a0b0c0d0e0f000102030405060708090a0b0c0d0e0f\"}, "
+                + "\"protection\": \"SRTSP\"}";
+        return JsonCodec.GSON.fromJson(json, Ciphersuite.class);
+    }
+}
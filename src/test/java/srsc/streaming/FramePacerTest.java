@@ -0,0 +1,48 @@
+package srsc.streaming;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class FramePacerTest {
+
+    // a stalled frame is retried for its own deadline and its lateness recorded once
+    @Test
+    void retryKeepsTheDeadline() throws Exception {
+        FramePacer pacer = new FramePacer(1);
+        DriftStats drift = new DriftStats();
+        List<Long> deadlines = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        long first = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5);
+        long period = TimeUnit.MILLISECONDS.toNanos(5);
+
+        pacer.schedule(new FramePacer.PacedTask() {
+            int retries = 3;
+
+            @Override
+            public long fire(long deadline) {
+                deadlines.add(deadline);
+                if (retries-- > 0)
+                    return RETRY;
+                if (deadline == first)
+                    return deadline + period;
+                done.countDown(); // the second frame is the last
+                return -1;
+            }
+        }, first, drift);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(first, first, first, first, first + period), deadlines);
+        for (int i = 0; i < 100 && drift.getCount() < 2; i++) // recorded after fire returns
+            Thread.sleep(10);
+        assertEquals(2, drift.getCount());
+        // the three retries are counted in the lateness of the first frame
+        assertTrue(drift.getMaxNanos() >= TimeUnit.MICROSECONDS.toNanos(300), drift.toString());
+    }
+}
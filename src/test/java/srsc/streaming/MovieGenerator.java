@@ -0,0 +1,42 @@
+package srsc.streaming;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+/*
+ * Writes a synthetic movie in the .dat format MovieFile reads (short size,
+ * long timestamp in ns, payload) for trying the servers without a real
+ * movie: frames of 200 to 3199 random bytes, 10 ms apart starting at 1 s.
+ * The same seed gives the same file. Run it by hand:
+ *
+ *   mvn -B test-compile
+ *   java -cp target/classes:target/test-classes srsc.streaming.MovieGenerator ./src/main/resources/movies/monsters.dat [frames] [seed]
+ */
+public class MovieGenerator {
+
+    private static final int MIN_FRAME = 200, MAX_FRAME = 3200;
+    private static final long START = 1_000_000_000L, PERIOD = 10_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Erro, usar: MovieGenerator <movie.dat> [frames] [seed]");
+            System.exit(-1);
+        }
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        Random random = new Random(seed);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[0])))) {
+            for (int i = 0; i < frames; i++) {
+                byte[] frame = new byte[MIN_FRAME + random.nextInt(MAX_FRAME - MIN_FRAME)];
+                random.nextBytes(frame);
+                out.writeShort(frame.length);
+                out.writeLong(START + i * PERIOD);
+                out.write(frame);
+            }
+        }
+        System.out.println(frames + " frames written to " + args[0]);
+    }
+}